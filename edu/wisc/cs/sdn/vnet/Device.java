@@ -72,12 +72,22 @@ public abstract class Device
 	{ this.vnsComm = vnsComm; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * Write out any packets still queued for the server, close the PCAP dump
+	 * file for the router, if logging is enabled, and write out any queued
+	 * log messages.
 	 */
 	public void destroy()
 	{
+		if (this.vnsComm != null)
+		{ this.vnsComm.stopWriter(); }
 		if (logfile != null)
 		{ this.logfile.close(); }
+		PacketLog.flush();
+		if (PacketLog.getDropped() > 0)
+		{
+			System.out.println(String.format(
+					"Packet log: %d messages dropped", PacketLog.getDropped()));
+		}
 	}
 	
 	/**
@@ -110,5 +120,33 @@ public abstract class Device
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send a raw Ethernet frame out a specific interface. The frame is sent
+	 * from the buffer it is in, without copying, if the buffer has room in
+	 * front of the frame for the VNS command header, as received frames do.
+	 * @param frame buffer holding the frame
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, Iface iface)
+	{ return this.vnsComm.sendFrame(frame, offset, length, iface.getName()); }
+	
+	/**
+	 * Handle a raw Ethernet frame received on a specific interface, without
+	 * parsing it into packet objects. Devices that can handle common frames
+	 * directly override this; any frame they do not handle is parsed and
+	 * passed to {@link #handlePacket(Ethernet, Iface)}.
+	 * @param frame buffer holding the frame; may be modified and sent
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be parsed
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{ return false; }
+	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
@@ -1,9 +1,13 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.File;
+
+import edu.wisc.cs.sdn.vnet.rt.RouteTable;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+import net.floodlightcontroller.packet.BasePacket;
 
 public class Main 
 {
@@ -16,8 +20,14 @@ public class Main
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
 		String arpCacheFile = null;
+		String fibSnapshotFile = null;
 		String logfile = null;
+		RouteTable.Engine engine = RouteTable.Engine.TRIE;
 		short port = DEFAULT_PORT;
+		int workers = 0;
+		int sampleRate = 1;
+		long triggerMinDelay = Router.RIP_TRIGGER_MIN_DELAY;
+		long triggerMaxDelay = Router.RIP_TRIGGER_MAX_DELAY;
 		VNSComm vnsComm = null;
 		Device dev = null;
 		
@@ -42,6 +52,36 @@ public class Main
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-f"))
+			{ fibSnapshotFile = args[++i]; }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-L"))
+			{
+				if (!parseLogLevel(args[++i]))
+				{
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-S"))
+			{ sampleRate = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-t"))
+			{
+				String[] parts = args[++i].split(":", 2);
+				triggerMinDelay = Long.parseLong(parts[0]);
+				triggerMaxDelay = (parts.length < 2) ? triggerMinDelay
+						: Long.parseLong(parts[1]);
+			}
+			else if (arg.equals("-e"))
+			{
+				engine = RouteTable.Engine.forName(args[++i]);
+				if (null == engine)
+				{
+					usage();
+					return;
+				}
+			}
 		}
 		
 		if (null == host)
@@ -62,6 +102,14 @@ public class Main
 			}
 		}
 		
+		// Log one in every sampleRate per-packet messages
+		for (PacketLog.Category category : PacketLog.Category.values())
+		{ PacketLog.setSampleRate(category, sampleRate); }
+		
+		// Only decode the layers a packet is actually inspected at; frames
+		// that are just forwarded never have their transport headers parsed
+		BasePacket.setLazyParsing(true);
+		
 		if (host.startsWith("s"))
 		{ dev = new Switch(host, dump); }
 		else if (host.startsWith("r"))
@@ -85,16 +133,51 @@ public class Main
 		
 		if (dev instanceof Router) 
 		{
+			// Restore the route table saved at the last shutdown, if any and
+			// the route table file has not changed since. Routes learned by
+			// RIP are not saved or restored: restored ones would have no RIP
+			// state, so would never time out, and the neighbors advertise
+			// them again within an update interval
+			boolean restored = false;
+			if (fibSnapshotFile != null && null == routeTableFile)
+			{
+				System.err.println("Warning: -f needs -r, FIB snapshot "
+						+ fibSnapshotFile + " not used");
+			}
+			else if (fibSnapshotFile != null)
+			{
+				((Router)dev).setFibSnapshotFile(fibSnapshotFile, routeTableFile);
+				if (new File(fibSnapshotFile).exists())
+				{ restored = ((Router)dev).loadFibSnapshot(fibSnapshotFile); }
+			}
+
 			// Read static route table
 			if (routeTableFile != null)
-			{ ((Router)dev).loadRouteTable(routeTableFile); }
+			{
+				if (!restored)
+				{ ((Router)dev).loadRouteTable(routeTableFile); }
+			}
 			else{
+				((Router)dev).setTriggeredUpdateDelay(triggerMinDelay, 
+						triggerMaxDelay);
 				((Router)dev).initializeRouteTable();
 			}
+
+			// Build the lookup engine from the initial routes
+			if (engine != RouteTable.Engine.TRIE)
+			{ ((Router)dev).setLookupEngine(engine); }
 			
 			// Read static ACP cache
 			if (arpCacheFile != null)
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
+			
+			// Spread packet handling over worker threads, with a separate
+			// thread writing packets to the server
+			if (workers > 0)
+			{
+				vnsComm.startWriter();
+				((Router)dev).startPipeline(workers);
+			}
 		}
 
 		// Read messages from the server until the server closes the connection
@@ -106,11 +189,43 @@ public class Main
 		dev.destroy();
 	}
 	
+	/**
+	 * Set the log level, and optionally the only categories logged, from an
+	 * argument of the form level[:category,...].
+	 * @return false if the level or a category is unknown
+	 */
+	static boolean parseLogLevel(String arg)
+	{
+		String[] parts = arg.split(":", 2);
+		PacketLog.Level level = PacketLog.Level.forName(parts[0]);
+		if (null == level)
+		{ return false; }
+		PacketLog.setLevel(level);
+		if (parts.length < 2)
+		{ return true; }
+		
+		for (PacketLog.Category category : PacketLog.Category.values())
+		{ PacketLog.setEnabled(category, false); }
+		for (String name : parts[1].split(","))
+		{
+			PacketLog.Category category = PacketLog.Category.forName(name);
+			if (null == category)
+			{ return false; }
+			PacketLog.setEnabled(category, true);
+		}
+		return true;
+	}
+	
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-e trie|dir24|poptrie] [-f fib_snapshot] [-w workers]");
+		System.out.println("     [-L error|warn|info|debug[:packet,forward,arp,rip]]");
+		System.out.println("     [-S sample_rate] [-t trigger_delay_ms[:max_ms]]");
+		System.out.println("  -f needs -r; the snapshot is only restored while the");
+		System.out.println("  routing table file is unchanged");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
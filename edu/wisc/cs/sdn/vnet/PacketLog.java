@@ -0,0 +1,365 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * Console log for per-packet messages. Messages have a level and a category;
+ * a message is only kept if its level is enabled, its category is enabled,
+ * and it is the one message in N its category samples. Kept messages are
+ * queued with their arguments and formatted and written by a separate
+ * thread, so the threads handling packets never format strings or wait on
+ * the console. If the queue is full, messages are dropped and counted
+ * rather than waited for.
+ */
+public class PacketLog
+{
+	/** Importance of a message */
+	public enum Level
+	{
+		ERROR("error"),
+		WARN("warn"),
+		INFO("info"),
+		DEBUG("debug");
+
+		private String name;
+
+		private Level(String name)
+		{ this.name = name; }
+
+		/**
+		 * @return name of the level as given on the command line
+		 */
+		public String getName()
+		{ return this.name; }
+
+		/**
+		 * @param name name of a level
+		 * @return the level with the given name; null if there is none
+		 */
+		public static Level forName(String name)
+		{
+			for (Level level : Level.values())
+			{
+				if (level.name.equals(name))
+				{ return level; }
+			}
+			return null;
+		}
+	}
+
+	/** Part of the device a message comes from */
+	public enum Category
+	{
+		/** Contents of every packet received */
+		PACKET("packet"),
+		/** Forwarding of individual packets */
+		FORWARD("forward"),
+		/** Address resolution */
+		ARP("arp"),
+		/** Routing protocol updates */
+		RIP("rip");
+
+		private String name;
+
+		private Category(String name)
+		{ this.name = name; }
+
+		/**
+		 * @return name of the category as given on the command line
+		 */
+		public String getName()
+		{ return this.name; }
+
+		/**
+		 * @param name name of a category
+		 * @return the category with the given name; null if there is none
+		 */
+		public static Category forName(String name)
+		{
+			for (Category category : Category.values())
+			{
+				if (category.name.equals(name))
+				{ return category; }
+			}
+			return null;
+		}
+	}
+
+	/** Default number of messages that can wait for the writer thread */
+	public static final int DEFAULT_QUEUE_SIZE = 8192;
+
+	/** A message waiting to be formatted */
+	private static class Record
+	{
+		private final Level level;
+		private final Category category;
+		private final String format;
+		private final Object arg1;
+		private final Object arg2;
+
+		/** Copy of a packet the message is about; null if none */
+		private final byte[] packet;
+
+		private Record(Level level, Category category, String format,
+				Object arg1, Object arg2, byte[] packet)
+		{
+			this.level = level;
+			this.category = category;
+			this.format = format;
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+			this.packet = packet;
+		}
+	}
+
+	/** Queued behind the last message to stop the writer thread */
+	private static final Record STOP = new Record(null, null, null, null,
+			null, null);
+
+	/** Least important level logged */
+	private static volatile Level level = Level.INFO;
+
+	/** Whether each category is logged, indexed by ordinal */
+	private static final boolean[] enabled = new boolean[Category.values().length];
+
+	/** One in how many messages of each category is logged, by ordinal */
+	private static final int[] sampleRates = new int[Category.values().length];
+
+	/** Number of messages of each category seen, by ordinal */
+	private static final AtomicLong[] seen = new AtomicLong[Category.values().length];
+
+	/** Number of messages dropped because the queue was full */
+	private static final AtomicLong dropped = new AtomicLong();
+
+	/** Messages waiting for the writer thread; null if not started */
+	private static volatile BlockingQueue<Record> queue = null;
+
+	/** Thread formatting and writing messages; null if not started */
+	private static Thread writer = null;
+
+	static
+	{
+		for (Category category : Category.values())
+		{
+			enabled[category.ordinal()] = true;
+			sampleRates[category.ordinal()] = 1;
+			seen[category.ordinal()] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * @param newLevel least important level to log
+	 */
+	public static void setLevel(Level newLevel)
+	{ level = newLevel; }
+
+	/**
+	 * @return least important level logged
+	 */
+	public static Level getLevel()
+	{ return level; }
+
+	/**
+	 * @param category a category of messages
+	 * @param enable whether to log messages of the category
+	 */
+	public static void setEnabled(Category category, boolean enable)
+	{ enabled[category.ordinal()] = enable; }
+
+	/**
+	 * @param category a category of messages
+	 * @param rate log one in this many messages of the category
+	 */
+	public static void setSampleRate(Category category, int rate)
+	{ sampleRates[category.ordinal()] = Math.max(rate, 1); }
+
+	/**
+	 * Check whether a message would be logged, counting it towards its
+	 * category's sampling if so. Callers that must do work to build a
+	 * message's arguments can check first, then call a log method.
+	 * @return true if the message should be logged
+	 */
+	public static boolean isLogged(Level msgLevel, Category category)
+	{
+		if (msgLevel.compareTo(level) > 0 || !enabled[category.ordinal()])
+		{ return false; }
+		int rate = sampleRates[category.ordinal()];
+		return (1 == rate
+				|| 0 == seen[category.ordinal()].getAndIncrement() % rate);
+	}
+
+	/**
+	 * Log a message.
+	 * @param format format string for the message
+	 */
+	public static void log(Level msgLevel, Category category, String format)
+	{
+		if (isLogged(msgLevel, category))
+		{ enqueue(new Record(msgLevel, category, format, null, null, null)); }
+	}
+
+	/**
+	 * Log a message with one argument. The argument is formatted later, so
+	 * it must not change after the call.
+	 * @param format format string for the message
+	 */
+	public static void log(Level msgLevel, Category category, String format,
+			Object arg1)
+	{
+		if (isLogged(msgLevel, category))
+		{ enqueue(new Record(msgLevel, category, format, arg1, null, null)); }
+	}
+
+	/**
+	 * Log a message with two arguments. The arguments are formatted later,
+	 * so they must not change after the call.
+	 * @param format format string for the message
+	 */
+	public static void log(Level msgLevel, Category category, String format,
+			Object arg1, Object arg2)
+	{
+		if (isLogged(msgLevel, category))
+		{ enqueue(new Record(msgLevel, category, format, arg1, arg2, null)); }
+	}
+
+	/**
+	 * Log a message followed by the contents of a packet. The packet is
+	 * copied, so it may be changed after the call.
+	 * @param message text logged before the packet
+	 * @param etherPacket the packet
+	 */
+	public static void logPacket(Level msgLevel, Category category,
+			String message, Ethernet etherPacket)
+	{
+		if (isLogged(msgLevel, category))
+		{
+			enqueue(new Record(msgLevel, category, message, null, null,
+					etherPacket.serialize()));
+		}
+	}
+
+	private static void enqueue(Record record)
+	{
+		while (true)
+		{
+			BlockingQueue<Record> records = queue;
+			if (null == records)
+			{ records = start(); }
+			if (!records.offer(record))
+			{
+				dropped.incrementAndGet();
+				return;
+			}
+
+			// A flush may have stopped the queue's writer thread since the
+			// queue was read; if the message is still queued it would never
+			// be written, so it is moved to the current queue
+			if (queue == records || !records.remove(record))
+			{ return; }
+		}
+	}
+
+	/**
+	 * Start the writer thread, if another thread has not already.
+	 * @return the queue the writer thread takes messages from
+	 */
+	private static synchronized BlockingQueue<Record> start()
+	{
+		if (queue != null)
+		{ return queue; }
+
+		final BlockingQueue<Record> records =
+				new ArrayBlockingQueue<Record>(DEFAULT_QUEUE_SIZE);
+		writer = new Thread("packet-log")
+		{
+			public void run()
+			{
+				Writer out = new BufferedWriter(
+						new OutputStreamWriter(System.out));
+				while (true)
+				{
+					Record record;
+					try
+					{ record = records.take(); }
+					catch (InterruptedException e)
+					{ return; }
+
+					try
+					{
+						if (record != STOP)
+						{ out.write(format(record)); }
+						if (records.isEmpty() || STOP == record)
+						{ out.flush(); }
+					}
+					catch (IOException e)
+					{ return; }
+
+					if (STOP == record)
+					{ return; }
+				}
+			}
+		};
+		writer.setDaemon(true);
+		queue = records;
+		writer.start();
+		return records;
+	}
+
+	/**
+	 * @return a message as a line of text
+	 */
+	private static String format(Record record)
+	{
+		String text;
+		if (record.packet != null)
+		{
+			Ethernet etherPacket = new Ethernet();
+			etherPacket.deserialize(record.packet, 0, record.packet.length);
+			text = record.format
+					+ etherPacket.toString().replace("\n", "\n\t");
+		}
+		else if (null == record.arg1)
+		{ text = record.format; }
+		else
+		{ text = String.format(record.format, record.arg1, record.arg2); }
+
+		if (Level.INFO == record.level || Level.DEBUG == record.level)
+		{ return text + "\n"; }
+		return record.level.getName().toUpperCase() + ": " + text + "\n";
+	}
+
+	/**
+	 * Write out the messages already queued, then stop the writer thread. A
+	 * new writer thread is started if more messages are logged.
+	 */
+	public static synchronized void flush()
+	{
+		if (null == writer)
+		{ return; }
+		BlockingQueue<Record> records = queue;
+		queue = null;
+		try
+		{
+			records.put(STOP);
+			writer.join();
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		writer = null;
+	}
+
+	/**
+	 * @return number of messages dropped because the writer thread was
+	 *         behind
+	 */
+	public static long getDropped()
+	{ return dropped.get(); }
+}
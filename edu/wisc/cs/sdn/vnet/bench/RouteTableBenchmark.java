@@ -0,0 +1,300 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.rt.PrefixTrie;
+import edu.wisc.cs.sdn.vnet.rt.RouteEntry;
+import edu.wisc.cs.sdn.vnet.rt.RouteTable;
+
+/**
+ * Measures route table lookups, batched lookups, insertions and removals
+ * with each lookup engine, over synthetic tables of several sizes and
+ * prefix mixes. Every measurement runs a number of warmup iterations, so
+ * the JIT compiler has settled, before the measured iterations; results
+ * are the mean and standard deviation of the measured iterations, in
+ * nanoseconds per operation.
+ *
+ * Insertions and removals are timed one route at a time, each published on
+ * its own as a route learned from a neighbor would be, against a table that
+ * holds all of the other routes.
+ */
+public class RouteTableBenchmark
+{
+	private static final String DEFAULT_SIZES = "10,1000,100000,1000000";
+	private static final String DEFAULT_MIXES = "internet,slash24,random";
+	private static final String DEFAULT_HIT_RATIOS = "1.0,0.5";
+	private static final String DEFAULT_ENGINES = "trie,dir24,poptrie";
+	private static final int DEFAULT_WARMUP = 3;
+	private static final int DEFAULT_ITERATIONS = 5;
+	private static final long DEFAULT_SEED = 1;
+
+	/** Number of addresses looked up per iteration */
+	private static final int LOOKUPS = 1 << 18;
+
+	/** Number of addresses per batched lookup */
+	private static final int BATCH = 64;
+
+	/** Largest number of routes removed and inserted per iteration */
+	private static final int UPDATES = 10000;
+
+	/** Number of interfaces routes are spread across */
+	private static final int IFACES = 4;
+
+	/** Number of gateways routes are spread across; a router has far fewer
+	 *  neighbors than routes */
+	private static final int GATEWAYS = 64;
+
+	/** Accumulates lookup results, so lookups cannot be optimized away */
+	private static volatile long sink;
+
+	public static void main(String[] args)
+	{
+		String sizes = DEFAULT_SIZES;
+		String mixes = DEFAULT_MIXES;
+		String hitRatios = DEFAULT_HIT_RATIOS;
+		String engines = DEFAULT_ENGINES;
+		int warmup = DEFAULT_WARMUP;
+		int iterations = DEFAULT_ITERATIONS;
+		long seed = DEFAULT_SEED;
+
+		// Parse arguments
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if (arg.equals("-n"))
+			{ sizes = args[++i]; }
+			else if (arg.equals("-m"))
+			{ mixes = args[++i]; }
+			else if (arg.equals("-r"))
+			{ hitRatios = args[++i]; }
+			else if (arg.equals("-e"))
+			{ engines = args[++i]; }
+			else if (arg.equals("-w"))
+			{ warmup = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-i"))
+			{ iterations = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-s"))
+			{ seed = Long.parseLong(args[++i]); }
+		}
+
+		List<SyntheticRoutes.PrefixMix> mixList =
+				new ArrayList<SyntheticRoutes.PrefixMix>();
+		for (String name : mixes.split(","))
+		{
+			SyntheticRoutes.PrefixMix mix = SyntheticRoutes.PrefixMix.forName(name);
+			if (null == mix)
+			{
+				usage();
+				return;
+			}
+			mixList.add(mix);
+		}
+		List<RouteTable.Engine> engineList = new ArrayList<RouteTable.Engine>();
+		for (String name : engines.split(","))
+		{
+			RouteTable.Engine engine = RouteTable.Engine.forName(name);
+			if (null == engine)
+			{
+				usage();
+				return;
+			}
+			engineList.add(engine);
+		}
+
+		Iface[] ifaces = new Iface[IFACES];
+		for (int k = 0; k < IFACES; k++)
+		{ ifaces[k] = new Iface("eth" + k); }
+
+		System.out.println(String.format("%-8s %-8s %8s %-9s %5s %10s %8s",
+				"Op", "Engine", "Size", "Mix", "Hit", "ns/op", "+/-"));
+		for (SyntheticRoutes.PrefixMix mix : mixList)
+		{
+			for (String size : sizes.split(","))
+			{
+				SyntheticRoutes routes = new SyntheticRoutes(
+						Integer.parseInt(size), mix, seed);
+				for (RouteTable.Engine engine : engineList)
+				{
+					RouteTable table = build(routes, engine, ifaces);
+					for (String hitRatio : hitRatios.split(","))
+					{
+						int[] addresses = routes.addresses(LOOKUPS,
+								Double.parseDouble(hitRatio), seed);
+						double[] results = new double[iterations];
+						double[] batches = new double[iterations];
+						for (int it = -warmup; it < iterations; it++)
+						{
+							double ns = lookup(table, addresses);
+							double batchNs = lookupBatch(table, addresses);
+							if (it >= 0)
+							{
+								results[it] = ns;
+								batches[it] = batchNs;
+							}
+						}
+						report("lookup", engine, routes, mix, hitRatio, results);
+						report("batch", engine, routes, mix, hitRatio, batches);
+					}
+
+					double[] inserts = new double[iterations];
+					double[] removes = new double[iterations];
+					for (int it = -warmup; it < iterations; it++)
+					{
+						double removeNs = remove(table, routes);
+						double insertNs = insert(table, routes, ifaces);
+						if (it >= 0)
+						{
+							removes[it] = removeNs;
+							inserts[it] = insertNs;
+						}
+					}
+					report("insert", engine, routes, mix, "-", inserts);
+					report("remove", engine, routes, mix, "-", removes);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a route table holding a set of routes.
+	 */
+	private static RouteTable build(SyntheticRoutes routes,
+			RouteTable.Engine engine, Iface[] ifaces)
+	{
+		RouteTable table = new RouteTable();
+		RouteTable.Transaction txn = table.begin();
+		try
+		{
+			for (int i = 0; i < routes.size(); i++)
+			{
+				txn.insert(routes.getPrefix(i), gateway(i),
+						PrefixTrie.mask(routes.getLength(i)), ifaces[i % IFACES]);
+			}
+		}
+		finally
+		{ txn.commit(); }
+		if (engine != RouteTable.Engine.TRIE)
+		{ table.setEngine(engine); }
+		return table;
+	}
+
+	private static int gateway(int i)
+	{ return 0x0A000000 | (i % GATEWAYS); }
+
+	/**
+	 * @return mean time to look up each address, in nanoseconds
+	 */
+	private static double lookup(RouteTable table, int[] addresses)
+	{
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int ip : addresses)
+		{
+			RouteEntry entry = table.lookup(ip);
+			if (entry != null)
+			{ sum += entry.getGatewayAddress(); }
+		}
+		long elapsed = System.nanoTime() - start;
+		sink += sum;
+		return elapsed / (double)addresses.length;
+	}
+
+	/**
+	 * @return mean time to look up each address, in nanoseconds, when
+	 *         addresses are looked up {@link #BATCH} at a time
+	 */
+	private static double lookupBatch(RouteTable table, int[] addresses)
+	{
+		int[] batch = new int[BATCH];
+		RouteEntry[] out = new RouteEntry[BATCH];
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < addresses.length; i += BATCH)
+		{
+			int count = Math.min(BATCH, addresses.length - i);
+			System.arraycopy(addresses, i, batch, 0, count);
+			table.lookupBatch(batch, count, out);
+			for (int j = 0; j < count; j++)
+			{
+				if (out[j] != null)
+				{ sum += out[j].getGatewayAddress(); }
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		sink += sum;
+		return elapsed / (double)addresses.length;
+	}
+
+	/**
+	 * Remove the first routes of a set, one at a time.
+	 * @return mean time per removal, in nanoseconds
+	 */
+	private static double remove(RouteTable table, SyntheticRoutes routes)
+	{
+		int count = Math.min(UPDATES, routes.size());
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++)
+		{
+			table.remove(routes.getPrefix(i),
+					PrefixTrie.mask(routes.getLength(i)));
+		}
+		return (System.nanoTime() - start) / (double)count;
+	}
+
+	/**
+	 * Insert the routes removed by {@link #remove}, one at a time.
+	 * @return mean time per insertion, in nanoseconds
+	 */
+	private static double insert(RouteTable table, SyntheticRoutes routes,
+			Iface[] ifaces)
+	{
+		int count = Math.min(UPDATES, routes.size());
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++)
+		{
+			table.insert(routes.getPrefix(i), gateway(i),
+					PrefixTrie.mask(routes.getLength(i)), ifaces[i % IFACES]);
+		}
+		return (System.nanoTime() - start) / (double)count;
+	}
+
+	private static void report(String op, RouteTable.Engine engine,
+			SyntheticRoutes routes, SyntheticRoutes.PrefixMix mix,
+			String hitRatio, double[] results)
+	{
+		double mean = 0;
+		for (double result : results)
+		{ mean += result; }
+		mean /= results.length;
+		double variance = 0;
+		for (double result : results)
+		{ variance += (result - mean) * (result - mean); }
+		double deviation = (results.length > 1)
+				? Math.sqrt(variance / (results.length - 1)) : 0;
+
+		System.out.println(String.format("%-8s %-8s %8d %-9s %5s %10.1f %8.1f",
+				op, engine.getName(), routes.size(), mix.getName(), hitRatio,
+				mean, deviation));
+	}
+
+	static void usage()
+	{
+		System.out.println("Route table benchmark");
+		System.out.println("RouteTableBenchmark [-n sizes] [-m mixes] [-r hit_ratios]");
+		System.out.println("     [-e engines] [-w warmup] [-i iterations] [-s seed] [-h]");
+		System.out.println("  lists are comma separated; mixes are internet, slash24 "
+				+ "and random; engines are trie, dir24 and poptrie");
+		System.out.println(String.format("  defaults sizes=%s mixes=%s "
+				+ "hit_ratios=%s engines=%s warmup=%d iterations=%d seed=%d",
+				DEFAULT_SIZES, DEFAULT_MIXES, DEFAULT_HIT_RATIOS,
+				DEFAULT_ENGINES, DEFAULT_WARMUP, DEFAULT_ITERATIONS,
+				DEFAULT_SEED));
+	}
+}
@@ -0,0 +1,179 @@
+package edu.wisc.cs.sdn.vnet.bench;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import edu.wisc.cs.sdn.vnet.rt.PrefixTrie;
+
+/**
+ * A reproducible set of routes and lookup addresses for benchmarking route
+ * tables. The same size, mix and seed always produce the same routes.
+ *
+ * Routes are only generated below 240.0.0.0, so addresses in 240.0.0.0/4
+ * never match a route and can be used as lookup misses.
+ */
+public class SyntheticRoutes
+{
+	/** Distributions of prefix lengths */
+	public enum PrefixMix
+	{
+		/** Lengths in roughly the proportions of a full Internet table,
+		 *  clustered in a limited number of /8s */
+		INTERNET("internet"),
+		/** Every prefix is a /24 */
+		SLASH24("slash24"),
+		/** Lengths and prefixes uniformly random from /8 to /32 */
+		RANDOM("random");
+
+		private String name;
+
+		private PrefixMix(String name)
+		{ this.name = name; }
+
+		/**
+		 * @return the name used to select the mix on the command line
+		 */
+		public String getName()
+		{ return this.name; }
+
+		/**
+		 * @param name name used to select a mix on the command line
+		 * @return the mix with the given name, null if none exists
+		 */
+		public static PrefixMix forName(String name)
+		{
+			for (PrefixMix mix : PrefixMix.values())
+			{
+				if (mix.name.equals(name))
+				{ return mix; }
+			}
+			return null;
+		}
+	}
+
+	/** Percentage of an Internet table with each prefix length, from /8
+	 *  to /24; longer prefixes are rare and left out */
+	private static final int[] INTERNET_PERCENT = {
+		0, 0, 0, 0, 0, 0, 1, 1,           // /8 - /15
+		2, 1, 2, 3, 5, 6, 11, 11, 57 };   // /16 - /24
+
+	/** First address that no route covers */
+	private static final int MISS_BASE = 0xF0000000;
+
+	/** Prefix of each route */
+	private int[] prefixes;
+
+	/** Length of each route's prefix */
+	private int[] lengths;
+
+	/**
+	 * Generate a set of routes.
+	 * @param size number of routes
+	 * @param mix distribution of prefix lengths
+	 * @param seed seed for the random number generator
+	 */
+	public SyntheticRoutes(int size, PrefixMix mix, long seed)
+	{
+		this.prefixes = new int[size];
+		this.lengths = new int[size];
+
+		Random random = new Random(seed);
+		Set<Long> seen = new HashSet<Long>();
+
+		// Internet routes cluster within the allocated /8s; pick up to 200
+		// /8s up front so prefixes nest and share subtrees
+		int[] blocks = new int[Math.max(1, Math.min(200, size / 64))];
+		for (int b = 0; b < blocks.length; b++)
+		{ blocks[b] = 1 + random.nextInt(222); }
+
+		int count = 0;
+		while (count < size)
+		{
+			int length;
+			int prefix;
+			switch (mix)
+			{
+			case SLASH24:
+				length = 24;
+				prefix = random.nextInt(MISS_BASE >>> 8) << 8;
+				break;
+			case RANDOM:
+				length = 8 + random.nextInt(25);
+				prefix = random.nextInt() & 0xEFFFFFFF;
+				break;
+			default:
+				length = internetLength(random);
+				prefix = (blocks[random.nextInt(blocks.length)] << 24)
+						| random.nextInt(1 << 24);
+				break;
+			}
+			prefix &= PrefixTrie.mask(length);
+			if ((prefix & MISS_BASE) == MISS_BASE)
+			{ continue; }
+			if (!seen.add(((long)prefix << 6) | length))
+			{ continue; }
+			this.prefixes[count] = prefix;
+			this.lengths[count] = length;
+			count++;
+		}
+	}
+
+	private static int internetLength(Random random)
+	{
+		int pick = random.nextInt(100);
+		for (int i = 0; i < INTERNET_PERCENT.length; i++)
+		{
+			pick -= INTERNET_PERCENT[i];
+			if (pick < 0)
+			{ return 8 + i; }
+		}
+		return 24;
+	}
+
+	/**
+	 * @return number of routes
+	 */
+	public int size()
+	{ return this.prefixes.length; }
+
+	/**
+	 * @param i number of a route
+	 * @return the route's prefix
+	 */
+	public int getPrefix(int i)
+	{ return this.prefixes[i]; }
+
+	/**
+	 * @param i number of a route
+	 * @return number of significant bits in the route's prefix
+	 */
+	public int getLength(int i)
+	{ return this.lengths[i]; }
+
+	/**
+	 * Generate addresses to look up.
+	 * @param count number of addresses
+	 * @param hitRatio fraction of the addresses that match a route
+	 * @param seed seed for the random number generator
+	 * @return the addresses, hits and misses mixed at random
+	 */
+	public int[] addresses(int count, double hitRatio, long seed)
+	{
+		Random random = new Random(seed);
+		int[] addresses = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			if (random.nextDouble() < hitRatio && this.size() > 0)
+			{
+				// A random host within a random route
+				int r = random.nextInt(this.size());
+				addresses[i] = this.prefixes[r]
+						| (random.nextInt() & ~PrefixTrie.mask(this.lengths[r]));
+			}
+			else
+			{ addresses[i] = MISS_BASE | random.nextInt(1 << 28); }
+		}
+		return addresses;
+	}
+}
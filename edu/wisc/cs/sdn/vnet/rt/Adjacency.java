@@ -0,0 +1,87 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A neighbor packets are forwarded to: the interface it is reached through
+ * and its MAC address, with the Ethernet header of every IPv4 packet sent to
+ * it built in advance. Rewriting a forwarded frame is then a single copy of
+ * the header.
+ *
+ * Adjacencies cannot be modified; when a neighbor's MAC address changes, the
+ * next hops and cached forwarding decisions holding it get a new one.
+ */
+public class Adjacency
+{
+	/** Length of the Ethernet header written by {@link #rewrite} */
+	public static final int HEADER_SIZE = 14;
+
+	/** Router interface out which packets are sent */
+	private final Iface iface;
+
+	/** MAC address of the neighbor */
+	private final MACAddress destinationMac;
+
+	/** MAC address of the interface */
+	private final MACAddress sourceMac;
+
+	/** Ethernet header for IPv4 packets sent to the neighbor */
+	private final byte[] header;
+
+	/**
+	 * Create an adjacency.
+	 * @param iface router interface out which packets are sent
+	 * @param destinationMac MAC address of the neighbor
+	 */
+	public Adjacency(Iface iface, MACAddress destinationMac)
+	{
+		this.iface = iface;
+		this.destinationMac = destinationMac;
+		this.sourceMac = iface.getMacAddress();
+
+		this.header = new byte[HEADER_SIZE];
+		System.arraycopy(destinationMac.toBytes(), 0, this.header, 0,
+				Ethernet.DATALAYER_ADDRESS_LENGTH);
+		System.arraycopy(this.sourceMac.toBytes(), 0, this.header,
+				Ethernet.DATALAYER_ADDRESS_LENGTH,
+				Ethernet.DATALAYER_ADDRESS_LENGTH);
+		this.header[12] = (byte)(Ethernet.TYPE_IPv4 >> 8);
+		this.header[13] = (byte)Ethernet.TYPE_IPv4;
+	}
+
+	/**
+	 * @return router interface out which packets are sent
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * @return MAC address of the neighbor
+	 */
+	public MACAddress getDestinationMac()
+	{ return this.destinationMac; }
+
+	/**
+	 * Address an untagged IPv4 frame to the neighbor.
+	 * @param frame buffer holding the frame
+	 * @param offset position of the frame in the buffer
+	 */
+	public void rewrite(byte[] frame, int offset)
+	{ System.arraycopy(this.header, 0, frame, offset, HEADER_SIZE); }
+
+	/**
+	 * Address a packet to the neighbor.
+	 * @param etherPacket the packet
+	 */
+	public void rewrite(Ethernet etherPacket)
+	{
+		etherPacket.setSourceMACAddress(this.sourceMac);
+		etherPacket.setDestinationMACAddress(this.destinationMac);
+	}
+
+	public String toString()
+	{ return this.destinationMac + " via " + this.iface.getName(); }
+}
@@ -1,15 +1,10 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 
-import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
@@ -20,11 +15,17 @@ public class ArpCache {
 	/** Entries in the cache; maps an IP address to an entry */
 	private Map<Integer,ArpEntry> entries;
 
+	/** Number of changes made to the cache */
+	private AtomicLong generation;
+
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{ 
+		this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); 
+		this.generation = new AtomicLong();
+	}
 
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
@@ -33,7 +34,22 @@ public class ArpCache {
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{ 
+		ArpEntry old = this.entries.put(ip, new ArpEntry(mac, ip)); 
+
+		// Relearning an address already known leaves lookups made with it
+		// valid
+		if (null == old || !mac.equals(old.getMac()))
+		{ this.generation.incrementAndGet(); }
+	}
+
+	/**
+	 * @return a number that changes whenever an entry is added or its MAC
+	 *         address changes; results of earlier lookups may be reused as
+	 *         long as it stays the same
+	 */
+	public long getGeneration()
+	{ return this.generation.get(); }
 
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -43,6 +59,27 @@ public class ArpCache {
 	public ArpEntry lookup(int ip)
 	{ return this.entries.get(ip); }
 
+	/**
+	 * Look up a burst of IP addresses.
+	 * @param ips IP addresses whose MAC addresses are desired
+	 * @param count number of addresses to look up, from the start of ips
+	 * @param out receives the IP->MAC mapping for each address; null where
+	 *        none exists
+	 */
+	public void lookupBatch(int[] ips, int count, ArpEntry[] out)
+	{
+		Map<Integer,ArpEntry> entries = this.entries;
+		for (int i = 0; i < count; i++)
+		{
+			// Bursts usually go to a handful of next hops, often one after
+			// another
+			if (i > 0 && ips[i] == ips[i - 1])
+			{ out[i] = out[i - 1]; }
+			else
+			{ out[i] = entries.get(ips[i]); }
+		}
+	}
+
 	/**
 	 * Populate the ARP cache from a file.
 	 * @param filename name of the file containing the static route table
@@ -51,76 +88,41 @@ public class ArpCache {
 	 */
 	public boolean load(String filename)
 	{
-		// Open the file
-		BufferedReader reader;
+		// Map the file
+		TableFileScanner scanner;
 		try 
-		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
-		}
-		catch (FileNotFoundException e) 
+		{ scanner = TableFileScanner.open(filename); }
+		catch (IOException e) 
 		{
 			System.err.println(e.toString());
 			return false;
 		}
 
-		while (true)
+		while (scanner.nextLine())
 		{
-			// Read an ARP entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
-
-			// Parse fields for ARP entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String macByte = "[a-fA-F0-9]{2}";
-			String macPattern = "("+macByte+":"+macByte+":"+macByte
-					+":"+macByte+":"+macByte+":"+macByte+")";
-			Pattern pattern = Pattern.compile(String.format("%s\\s+%s", ipPattern, macPattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 2)
+			// Parse fields for ARP entry: IP MAC
+			long ip = scanner.readIPv4();
+			long mac = -1;
+			if (ip >= 0 && scanner.skipWhitespace())
+			{ mac = scanner.readMAC(); }
+			if (mac < 0 || !scanner.atLineEnd())
 			{
-				System.err.println("Invalid entry in ARP cache file");
-				try { reader.close(); } catch (IOException f) {};
+				System.err.println("Invalid entry in ARP cache file, line "
+						+ scanner.getLineNumber());
 				return false;
 			}
 
-			int ip = IPv4.toIPv4Address(matcher.group(1));
 			if (0 == ip)
 			{
 				System.err.println("Error loading ARP cache, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-
-			MACAddress mac = null;
-			try
-			{ mac = MACAddress.valueOf(matcher.group(2)); }
-			catch(IllegalArgumentException iae)
-			{
-				System.err.println("Error loading ARP cache, cannot convert " 
-						+ matcher.group(3) + " to valid MAC");
-				try { reader.close(); } catch (IOException f) {};
+						+ "IP to valid IP, line " + scanner.getLineNumber());
 				return false;
 			}
 
 			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			this.insert(MACAddress.valueOf(mac), (int)ip);
 		}
 
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
 		return true;
 	}
 
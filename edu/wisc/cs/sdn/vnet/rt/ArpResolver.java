@@ -0,0 +1,337 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PacketLog;
+import edu.wisc.cs.sdn.vnet.PacketLog.Category;
+import edu.wisc.cs.sdn.vnet.PacketLog.Level;
+
+/**
+ * Holds packets for next hops whose MAC addresses are not yet known, and
+ * sends ARP requests for those next hops until they answer. Requests are
+ * repeated with exponential backoff; once the retry budget is spent the
+ * held packets are dropped and their senders told the host is unreachable.
+ * Queues are bounded per next hop and overall, so an unresponsive neighbor
+ * cannot tie up an unbounded amount of memory.
+ */
+public class ArpResolver
+{
+	/** Default number of packets held for any one next hop */
+	public static final int DEFAULT_MAX_PACKETS_PER_ADDRESS = 64;
+
+	/** Default number of packets held for all next hops together */
+	public static final int DEFAULT_MAX_PACKETS = 4096;
+
+	/** Time (in milliseconds) to wait for a reply to the first request;
+	 *  doubled after each further request */
+	public static final long REQUEST_TIMEOUT = 1000;
+
+	/** Number of requests sent before a next hop is given up on */
+	public static final int MAX_REQUESTS = 3;
+
+	/** Broadcast MAC address ARP requests are sent to */
+	private static final byte[] BROADCAST_MAC =
+			MACAddress.valueOf("ff:ff:ff:ff:ff:ff").toBytes();
+
+	/** A packet waiting for its next hop's MAC address */
+	private static class HeldPacket
+	{
+		private final Ethernet etherPacket;
+		private final Iface inIface;
+		private final NextHop hop;
+
+		private HeldPacket(Ethernet etherPacket, Iface inIface, NextHop hop)
+		{
+			this.etherPacket = etherPacket;
+			this.inIface = inIface;
+			this.hop = hop;
+		}
+	}
+
+	/** A next hop being resolved */
+	private class Request extends TimerTask
+	{
+		private final int ip;
+		private final Iface iface;
+		private final List<HeldPacket> packets;
+		private int requestsSent;
+
+		private Request(int ip, Iface iface)
+		{
+			this.ip = ip;
+			this.iface = iface;
+			this.packets = new ArrayList<HeldPacket>();
+			this.requestsSent = 0;
+		}
+
+		public void run()
+		{ ArpResolver.this.retry(this); }
+	}
+
+	/** Router the packets are sent by */
+	private final Router router;
+
+	/** ARP cache resolved addresses are added to */
+	private final ArpCache arpCache;
+
+	/** Next hops being resolved, keyed by IP address */
+	private final Map<Integer,Request> requests;
+
+	/** Number of packets held for any one next hop */
+	private final int maxPacketsPerAddress;
+
+	/** Number of packets held for all next hops together */
+	private final int maxPackets;
+
+	/** Number of packets currently held */
+	private int heldPackets;
+
+	/** Number of packets dropped because a queue was full */
+	private long overflows;
+
+	/** Number of packets dropped because their next hop never answered */
+	private long timeouts;
+
+	/** Schedules repeated requests; created when first needed */
+	private Timer timer;
+
+	/**
+	 * Create a resolver with the default queue limits.
+	 * @param router router the packets are sent by
+	 * @param arpCache ARP cache resolved addresses are added to
+	 */
+	public ArpResolver(Router router, ArpCache arpCache)
+	{
+		this(router, arpCache, DEFAULT_MAX_PACKETS_PER_ADDRESS,
+				DEFAULT_MAX_PACKETS);
+	}
+
+	/**
+	 * Create a resolver.
+	 * @param router router the packets are sent by
+	 * @param arpCache ARP cache resolved addresses are added to
+	 * @param maxPacketsPerAddress number of packets held for any one next hop
+	 * @param maxPackets number of packets held for all next hops together
+	 */
+	public ArpResolver(Router router, ArpCache arpCache,
+			int maxPacketsPerAddress, int maxPackets)
+	{
+		this.router = router;
+		this.arpCache = arpCache;
+		this.requests = new HashMap<Integer,Request>();
+		this.maxPacketsPerAddress = maxPacketsPerAddress;
+		this.maxPackets = maxPackets;
+		this.heldPackets = 0;
+		this.overflows = 0;
+		this.timeouts = 0;
+		this.timer = null;
+	}
+
+	/**
+	 * Hold a packet until its next hop's MAC address is known, sending an ARP
+	 * request if the next hop is not already being resolved. The packet's
+	 * source MAC address must already be set; its destination MAC address is
+	 * set when it is sent.
+	 * @param ip IP address of the next hop
+	 * @param outIface interface the next hop is reached through
+	 * @param etherPacket the packet to send to the next hop
+	 * @param inIface interface the packet was received on; null if the
+	 *        router sent it
+	 * @param hop next hop whose counter the packet is counted in when sent
+	 * @return true if the packet was held or sent, false if it was dropped
+	 *         because too many packets are already held
+	 */
+	public boolean enqueue(int ip, Iface outIface, Ethernet etherPacket,
+			Iface inIface, NextHop hop)
+	{
+		Request request;
+		synchronized (this)
+		{
+			// The reply may have arrived since the caller looked
+			ArpEntry arpEntry = this.arpCache.lookup(ip);
+			if (null == arpEntry)
+			{
+				request = this.requests.get(ip);
+				if ((request != null
+						&& request.packets.size() >= this.maxPacketsPerAddress)
+						|| this.heldPackets >= this.maxPackets)
+				{
+					this.overflows++;
+					return false;
+				}
+
+				boolean first = (null == request);
+				if (first)
+				{
+					request = new Request(ip, outIface);
+					this.requests.put(ip, request);
+				}
+				request.packets.add(new HeldPacket(etherPacket, inIface, hop));
+				this.heldPackets++;
+				if (!first)
+				{ return true; }
+				this.schedule(request);
+			}
+			else
+			{
+				etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
+				request = null;
+			}
+		}
+
+		if (null == request)
+		{
+			hop.countPacket();
+			this.router.sendPacket(etherPacket, outIface);
+		}
+		else
+		{ this.sendRequest(request); }
+		return true;
+	}
+
+	/**
+	 * Record the MAC address of an IP address, and send the packets held for
+	 * it.
+	 * @param ip IP address that was resolved
+	 * @param mac MAC address of the IP address
+	 */
+	public void resolved(int ip, MACAddress mac)
+	{
+		// Insert before taking the lock, so a packet queued from now on
+		// either finds the entry or is sent below
+		this.arpCache.insert(mac, ip);
+
+		Request request;
+		synchronized (this)
+		{
+			request = this.requests.remove(ip);
+			if (null == request)
+			{ return; }
+			request.cancel();
+			this.heldPackets -= request.packets.size();
+		}
+
+		byte[] macBytes = mac.toBytes();
+		for (HeldPacket held : request.packets)
+		{
+			held.etherPacket.setDestinationMACAddress(macBytes);
+			held.hop.countPacket();
+			this.router.sendPacket(held.etherPacket, request.iface);
+		}
+	}
+
+	/**
+	 * Send another request for a next hop that has not answered, or give up
+	 * on it once the retry budget is spent.
+	 */
+	private void retry(Request request)
+	{
+		Request next = null;
+		synchronized (this)
+		{
+			if (this.requests.get(request.ip) != request)
+			{ return; }
+			if (request.requestsSent < MAX_REQUESTS)
+			{
+				// A timer task cannot be scheduled twice, so the packets
+				// move to a new request
+				next = new Request(request.ip, request.iface);
+				next.packets.addAll(request.packets);
+				next.requestsSent = request.requestsSent;
+				this.requests.put(next.ip, next);
+				this.schedule(next);
+			}
+			else
+			{
+				this.requests.remove(request.ip);
+				this.heldPackets -= request.packets.size();
+				this.timeouts += request.packets.size();
+			}
+		}
+
+		if (next != null)
+		{
+			this.sendRequest(next);
+			return;
+		}
+		PacketLog.log(Level.INFO, Category.ARP,
+				"No ARP reply from %s, dropped %d packets",
+				IPv4.fromIPv4Address(request.ip), request.packets.size());
+		for (HeldPacket held : request.packets)
+		{
+			if (held.inIface != null)
+			{ this.router.sendHostUnreachable(held.etherPacket, held.inIface); }
+		}
+	}
+
+	/**
+	 * Schedule the check for a reply to the request about to be sent, waiting
+	 * twice as long as for the previous request. Must be called with the
+	 * lock held.
+	 */
+	private void schedule(Request request)
+	{
+		if (null == this.timer)
+		{ this.timer = new Timer("arp-resolver", true); }
+		request.requestsSent++;
+		this.timer.schedule(request, REQUEST_TIMEOUT << (request.requestsSent - 1));
+	}
+
+	/**
+	 * Broadcast an ARP request for a next hop out the interface it is
+	 * reached through.
+	 */
+	private void sendRequest(Request request)
+	{
+		Iface iface = request.iface;
+		ARP arpPacket = new ARP();
+		arpPacket.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arpPacket.setProtocolType(ARP.PROTO_TYPE_IP);
+		arpPacket.setHardwareAddressLength(
+				(byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arpPacket.setProtocolAddressLength((byte)4);
+		arpPacket.setOpCode(ARP.OP_REQUEST);
+		arpPacket.setSenderHardwareAddress(iface.getMacAddress().toBytes());
+		arpPacket.setSenderProtocolAddress(iface.getIpAddress());
+		arpPacket.setTargetHardwareAddress(
+				new byte[Ethernet.DATALAYER_ADDRESS_LENGTH]);
+		arpPacket.setTargetProtocolAddress(request.ip);
+
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setEtherType(Ethernet.TYPE_ARP);
+		etherPacket.setSourceMACAddress(iface.getMacAddress().toBytes());
+		etherPacket.setDestinationMACAddress(BROADCAST_MAC);
+		etherPacket.setPayload(arpPacket);
+		this.router.sendPacket(etherPacket, iface);
+	}
+
+	/**
+	 * Stop sending requests; held packets are discarded.
+	 */
+	public synchronized void shutdown()
+	{
+		if (this.timer != null)
+		{ this.timer.cancel(); }
+		this.requests.clear();
+		this.heldPackets = 0;
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("ARP resolver: %d packets held for %d addresses, "
+				+ "%d dropped on full queues, %d dropped unresolved",
+				this.heldPackets, this.requests.size(), this.overflows,
+				this.timeouts);
+	}
+}
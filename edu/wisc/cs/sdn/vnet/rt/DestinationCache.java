@@ -0,0 +1,152 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A fixed-size, direct-mapped cache of forwarding decisions keyed by
+ * destination IP address. Each entry is stamped with the route table and
+ * ARP cache generations it was resolved under, so any change to either
+ * table invalidates every entry without touching the cache.
+ *
+ * Besides the thread that owns it, a cache may be used by threads that
+ * send packets of their own, such as the ARP resolver's timer, so its
+ * counters are safe to update from several threads.
+ */
+public class DestinationCache
+{
+	/** Default number of entries in the cache */
+	public static final int DEFAULT_SIZE = 4096;
+
+	/** A resolved forwarding decision for one destination */
+	public static class Entry
+	{
+		private final int destinationAddress;
+		private final long routeGeneration;
+		private final long arpGeneration;
+		private final RouteEntry route;
+		private final Adjacency adjacency;
+
+		public Entry(int destinationAddress, long routeGeneration,
+				long arpGeneration, RouteEntry route, Adjacency adjacency)
+		{
+			this.destinationAddress = destinationAddress;
+			this.routeGeneration = routeGeneration;
+			this.arpGeneration = arpGeneration;
+			this.route = route;
+			this.adjacency = adjacency;
+		}
+
+		/**
+		 * @return destination IP address
+		 */
+		public int getDestinationAddress()
+		{ return this.destinationAddress; }
+
+		/**
+		 * @return route entry matching the destination
+		 */
+		public RouteEntry getRoute()
+		{ return this.route; }
+
+		/**
+		 * @return router interface out which to send packets; null if the
+		 *         route has several paths, which are picked per flow
+		 */
+		public Iface getInterface()
+		{ return (null == this.adjacency) ? null : this.adjacency.getInterface(); }
+
+		/**
+		 * @return MAC address of the next hop; null if the route has
+		 *         several paths
+		 */
+		public MACAddress getNextHopMac()
+		{
+			return (null == this.adjacency) ? null 
+					: this.adjacency.getDestinationMac();
+		}
+
+		/**
+		 * @return neighbor to send packets to, with their Ethernet header;
+		 *         null if the route has several paths
+		 */
+		public Adjacency getAdjacency()
+		{ return this.adjacency; }
+	}
+
+	/** Cache slots; entries are immutable, so slots can be read racily */
+	private Entry[] slots;
+
+	/** Number of bits of the hashed destination used to pick a slot */
+	private int bits;
+
+	/** Number of lookups answered from the cache */
+	private final LongAdder hits;
+
+	/** Number of lookups not answered from the cache */
+	private final LongAdder misses;
+
+	/**
+	 * Initialize an empty cache.
+	 * @param size number of entries; rounded up to a power of two
+	 */
+	public DestinationCache(int size)
+	{
+		this.bits = 32 - Integer.numberOfLeadingZeros(Math.max(size, 2) - 1);
+		this.slots = new Entry[1 << this.bits];
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	private int slot(int ip)
+	{ return (ip * 0x9E3779B1) >>> (32 - this.bits); }
+
+	/**
+	 * Find the forwarding decision for a destination.
+	 * @param ip destination IP address
+	 * @param routeGeneration current route table generation
+	 * @param arpGeneration current ARP cache generation
+	 * @return the cached decision; null if none is cached or it is stale
+	 */
+	public Entry lookup(int ip, long routeGeneration, long arpGeneration)
+	{
+		Entry entry = this.slots[this.slot(ip)];
+		if (entry != null && entry.destinationAddress == ip
+				&& entry.routeGeneration == routeGeneration
+				&& entry.arpGeneration == arpGeneration)
+		{
+			this.hits.increment();
+			return entry;
+		}
+		this.misses.increment();
+		return null;
+	}
+
+	/**
+	 * Cache a forwarding decision, replacing whatever shares its slot.
+	 * @param entry the forwarding decision
+	 */
+	public void insert(Entry entry)
+	{ this.slots[this.slot(entry.destinationAddress)] = entry; }
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	/**
+	 * @return number of lookups not answered from the cache
+	 */
+	public long getMisses()
+	{ return this.misses.sum(); }
+
+	public String toString()
+	{
+		return String.format("Destination cache: %d hits, %d misses",
+				this.hits.sum(), this.misses.sum());
+	}
+}
@@ -0,0 +1,548 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+
+/**
+ * A DIR-24-8 longest prefix match index. A primary table with one slot per
+ * /24 holds the best route for prefixes of length 24 or less; slots covered
+ * by a longer prefix instead point to a 256-slot overflow block. A lookup
+ * therefore costs at most two table reads, plus the read of the route.
+ *
+ * Each slot holds the length of the prefix it was filled from (bits 24-29)
+ * and an index into the route array (bits 0-23), or has the top bit set and
+ * holds an overflow block number. Slot value 0 means no route.
+ *
+ * Routes are not kept as objects: each route index holds the route's
+ * prefix and next hop number in consecutive ints of the route array, and a
+ * {@link RouteEntry} is created for each lookup.
+ *
+ * The primary table, overflow blocks and route array are split into chunks
+ * that are copied on write, so a fork shares every chunk it has not
+ * modified with the index it was forked from. Chunks of the primary table
+ * that have never held a route all share a single zero chunk.
+ */
+public class Dir248Table implements RouteIndex
+{
+	/** Flag marking a primary slot that points to an overflow block */
+	private static final int BLOCK_FLAG = 0x80000000;
+
+	/** Position of the prefix length within a slot */
+	private static final int LENGTH_SHIFT = 24;
+
+	/** Bits of a slot that hold a route index */
+	private static final int INDEX_MASK = 0xFFFFFF;
+
+	/** Number of slots in an overflow block */
+	private static final int BLOCK_SIZE = 256;
+
+	/** Size (log 2) of a chunk of the primary table */
+	private static final int SLOT_CHUNK_BITS = 12;
+
+	/** Size (log 2) of a chunk of the route array, in routes */
+	private static final int ROUTE_CHUNK_BITS = 10;
+
+	/** Number of ints in a route: prefix and next hop number */
+	private static final int ROUTE_SIZE = 2;
+
+	/** Chunk shared by all parts of the primary table that hold no route */
+	private static final int[] ZERO_CHUNK = new int[1 << SLOT_CHUNK_BITS];
+
+	/** Primary table, indexed by the top 24 bits of an address */
+	private int[][] tbl24;
+	private boolean tbl24Owned;
+	private boolean[] tbl24ChunkOwned;
+
+	/** Overflow blocks, indexed by block number then the low 8 bits */
+	private int[][] blocks;
+	private boolean blocksOwned;
+	private boolean[] blockOwned;
+
+	/** Routes referenced by slots; index 0 is never used */
+	private int[][] routes;
+	private boolean routesOwned;
+	private boolean[] routeChunkOwned;
+
+	/** Next hops of the route table the index was last published with */
+	private NextHopTable nextHops;
+
+	/** State only read by the writer, which carries over to a fork */
+	private Allocator alloc;
+
+	/**
+	 * Reference counts and free lists for route indices and overflow
+	 * blocks. Readers never look at these, so a fork takes them over rather
+	 * than copying them.
+	 */
+	private static class Allocator
+	{
+		/** Number of slots referencing each route */
+		int[] refs = new int[1 << ROUTE_CHUNK_BITS];
+
+		/** Number of route indices ever allocated (including index 0) */
+		int routeCount = 1;
+
+		/** Route indices that have been released and can be reused */
+		int[] freeRoutes = new int[16];
+		int freeRouteCount = 0;
+
+		/** Number of overflow blocks ever allocated */
+		int blockCount = 0;
+
+		/** Overflow blocks that have been released and can be reused */
+		int[] freeBlocks = new int[16];
+		int freeBlockCount = 0;
+	}
+
+	/**
+	 * Initialize an empty index.
+	 */
+	public Dir248Table()
+	{
+		this.tbl24 = new int[1 << (24 - SLOT_CHUNK_BITS)][];
+		Arrays.fill(this.tbl24, ZERO_CHUNK);
+		this.blocks = new int[16][];
+		this.routes = new int[16][];
+		this.nextHops = null;
+		this.alloc = new Allocator();
+		this.claimAll();
+	}
+
+	private Dir248Table(Dir248Table base)
+	{
+		this.tbl24 = base.tbl24;
+		this.blocks = base.blocks;
+		this.routes = base.routes;
+		this.nextHops = base.nextHops;
+		this.alloc = base.alloc;
+		this.tbl24ChunkOwned = new boolean[this.tbl24.length];
+		this.blockOwned = new boolean[this.blocks.length];
+		this.routeChunkOwned = new boolean[this.routes.length];
+	}
+
+	/**
+	 * Mark every array as owned by this index; used when nothing is shared.
+	 */
+	private void claimAll()
+	{
+		this.tbl24Owned = true;
+		this.tbl24ChunkOwned = new boolean[this.tbl24.length];
+		this.blocksOwned = true;
+		this.blockOwned = new boolean[this.blocks.length];
+		Arrays.fill(this.blockOwned, true);
+		this.routesOwned = true;
+		this.routeChunkOwned = new boolean[this.routes.length];
+
+		// Chunks not allocated yet are left unowned, so setRoute allocates
+		// them
+		for (int c = 0; c < this.routes.length; c++)
+		{ this.routeChunkOwned[c] = (this.routes[c] != null); }
+	}
+
+	private static int length(int slot)
+	{ return (slot >>> LENGTH_SHIFT) & 0x3F; }
+
+	public RouteEntry lookup(int ip)
+	{
+		int slot = this.tbl24[ip >>> (8 + SLOT_CHUNK_BITS)]
+				[(ip >>> 8) & ((1 << SLOT_CHUNK_BITS) - 1)];
+		if (slot < 0)
+		{ slot = this.blocks[slot & ~BLOCK_FLAG][ip & 0xFF]; }
+		return this.view(slot);
+	}
+
+	public void lookupBatch(int[] ips, int count, RouteEntry[] out)
+	{
+		// Read all of the primary slots, then all of the overflow slots, so
+		// the cache misses of independent reads overlap instead of each
+		// lookup waiting for its own
+		int[][] tbl24 = this.tbl24;
+		int[] slots = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			int ip = ips[i];
+			slots[i] = tbl24[ip >>> (8 + SLOT_CHUNK_BITS)]
+					[(ip >>> 8) & ((1 << SLOT_CHUNK_BITS) - 1)];
+		}
+		int[][] blocks = this.blocks;
+		for (int i = 0; i < count; i++)
+		{
+			int slot = slots[i];
+			if (slot < 0)
+			{ slots[i] = blocks[slot & ~BLOCK_FLAG][ips[i] & 0xFF]; }
+		}
+		for (int i = 0; i < count; i++)
+		{ out[i] = this.view(slots[i]); }
+	}
+
+	/**
+	 * @return the route entry a slot refers to, null if the slot is empty
+	 */
+	private RouteEntry view(int slot)
+	{
+		if (0 == slot)
+		{ return null; }
+		int index = slot & INDEX_MASK;
+		int[] chunk = this.routes[index >>> ROUTE_CHUNK_BITS];
+		int base = (index & ((1 << ROUTE_CHUNK_BITS) - 1)) * ROUTE_SIZE;
+		return new RouteEntry(chunk[base], PrefixTrie.mask(length(slot)),
+				this.nextHops.get(chunk[base + 1]));
+	}
+
+	public RouteIndex fork()
+	{ return new Dir248Table(this); }
+
+	public void insert(RouteEntry entry)
+	{
+		int prefix = entry.getDestinationAddress();
+		int length = PrefixTrie.prefixLength(entry.getMaskAddress());
+		int value = this.allocRoute(entry, length);
+
+		if (length <= 24)
+		{
+			int start = prefix >>> 8;
+			int end = start + (1 << (24 - length));
+			for (int i = start; i < end; i++)
+			{
+				int slot = this.getSlot(i);
+				if (slot < 0)
+				{
+					int block = slot & ~BLOCK_FLAG;
+					int[] slots = this.blocks[block];
+					for (int j = 0; j < BLOCK_SIZE; j++)
+					{
+						if (length(slots[j]) <= length)
+						{ slots = this.setBlockSlot(block, j, value); }
+					}
+				}
+				else if (length(slot) <= length)
+				{ this.setSlot(i, value); }
+			}
+		}
+		else
+		{
+			int block = this.blockFor(prefix >>> 8);
+			int start = prefix & 0xFF;
+			int end = start + (1 << (32 - length));
+			int[] slots = this.blocks[block];
+			for (int j = start; j < end; j++)
+			{
+				if (length(slots[j]) <= length)
+				{ slots = this.setBlockSlot(block, j, value); }
+			}
+		}
+
+		// Drop the hold taken by allocRoute; frees the index if the prefix is
+		// entirely hidden by longer prefixes
+		this.release(value);
+	}
+
+	public void remove(int prefix, int length, RouteEntry replacement)
+	{
+		int value = 0;
+		if (replacement != null)
+		{
+			value = this.allocRoute(replacement,
+					PrefixTrie.prefixLength(replacement.getMaskAddress()));
+		}
+
+		// Slots filled from a prefix of the same length within the removed
+		// range can only have been filled from the removed prefix
+		if (length <= 24)
+		{
+			int start = prefix >>> 8;
+			int end = start + (1 << (24 - length));
+			for (int i = start; i < end; i++)
+			{
+				int slot = this.getSlot(i);
+				if (slot < 0)
+				{
+					int block = slot & ~BLOCK_FLAG;
+					int[] slots = this.blocks[block];
+					for (int j = 0; j < BLOCK_SIZE; j++)
+					{
+						if (slots[j] != 0 && length(slots[j]) == length)
+						{ slots = this.setBlockSlot(block, j, value); }
+					}
+				}
+				else if (slot != 0 && length(slot) == length)
+				{ this.setSlot(i, value); }
+			}
+		}
+		else if (this.getSlot(prefix >>> 8) < 0)
+		{
+			int i = prefix >>> 8;
+			int block = this.getSlot(i) & ~BLOCK_FLAG;
+			int start = prefix & 0xFF;
+			int end = start + (1 << (32 - length));
+			int[] slots = this.blocks[block];
+			for (int j = start; j < end; j++)
+			{
+				if (length(slots[j]) == length)
+				{ slots = this.setBlockSlot(block, j, value); }
+			}
+			this.collapseBlock(i);
+		}
+
+		this.release(value);
+	}
+
+	public void publish(PrefixTrie entries)
+	{
+		// Changes are applied to the tables as they are made; only the next
+		// hops the routes refer to need picking up
+		this.nextHops = entries.getNextHops();
+	}
+
+	public long memoryUsage()
+	{
+		long bytes = 4L * (this.tbl24.length + this.blocks.length
+				+ this.routes.length);
+		for (int[] chunk : this.tbl24)
+		{
+			if (chunk != ZERO_CHUNK)
+			{ bytes += 4L * chunk.length; }
+		}
+		for (int[] block : this.blocks)
+		{
+			if (block != null)
+			{ bytes += 4L * block.length; }
+		}
+		for (int[] chunk : this.routes)
+		{
+			if (chunk != null)
+			{ bytes += 4L * chunk.length; }
+		}
+		bytes += 4L * (this.alloc.refs.length + this.alloc.freeRoutes.length
+				+ this.alloc.freeBlocks.length);
+		return bytes;
+	}
+
+	/**
+	 * @return number of overflow blocks in use
+	 */
+	public int getBlockCount()
+	{ return this.alloc.blockCount - this.alloc.freeBlockCount; }
+
+	private int getSlot(int i)
+	{
+		return this.tbl24[i >>> SLOT_CHUNK_BITS]
+				[i & ((1 << SLOT_CHUNK_BITS) - 1)];
+	}
+
+	/**
+	 * Store a value in a primary slot, maintaining route reference counts.
+	 */
+	private void setSlot(int i, int value)
+	{
+		int c = i >>> SLOT_CHUNK_BITS;
+		if (!this.tbl24ChunkOwned[c])
+		{
+			if (!this.tbl24Owned)
+			{
+				this.tbl24 = this.tbl24.clone();
+				this.tbl24Owned = true;
+			}
+			this.tbl24[c] = this.tbl24[c].clone();
+			this.tbl24ChunkOwned[c] = true;
+		}
+		int[] chunk = this.tbl24[c];
+		int pos = i & ((1 << SLOT_CHUNK_BITS) - 1);
+		int old = chunk[pos];
+		chunk[pos] = value;
+		this.retain(value);
+		this.release(old);
+	}
+
+	/**
+	 * Store a value in an overflow block slot, maintaining route reference
+	 * counts.
+	 * @return the (possibly copied) block, for further writes
+	 */
+	private int[] setBlockSlot(int block, int j, int value)
+	{
+		int[] slots = this.ownBlock(block);
+		int old = slots[j];
+		slots[j] = value;
+		this.retain(value);
+		this.release(old);
+		return slots;
+	}
+
+	private int[] ownBlock(int block)
+	{
+		if (!this.blockOwned[block])
+		{
+			if (!this.blocksOwned)
+			{
+				this.blocks = this.blocks.clone();
+				this.blocksOwned = true;
+			}
+			this.blocks[block] = this.blocks[block].clone();
+			this.blockOwned[block] = true;
+		}
+		return this.blocks[block];
+	}
+
+	/**
+	 * Count a reference to the route in a slot value; values that are empty
+	 * or point to an overflow block are ignored.
+	 */
+	private void retain(int value)
+	{
+		if (value > 0)
+		{ this.alloc.refs[value & INDEX_MASK]++; }
+	}
+
+	/**
+	 * Drop a reference to the route in a slot value, releasing the route's
+	 * index if it is no longer referenced.
+	 */
+	private void release(int value)
+	{
+		if (value <= 0)
+		{ return; }
+		int index = value & INDEX_MASK;
+		this.alloc.refs[index]--;
+		if (0 == this.alloc.refs[index])
+		{
+			if (this.alloc.freeRouteCount == this.alloc.freeRoutes.length)
+			{ this.alloc.freeRoutes = grow(this.alloc.freeRoutes); }
+			this.alloc.freeRoutes[this.alloc.freeRouteCount++] = index;
+		}
+	}
+
+	private void setRoute(int index, RouteEntry entry)
+	{
+		int c = index >>> ROUTE_CHUNK_BITS;
+		if (c >= this.routes.length)
+		{
+			this.routes = Arrays.copyOf(this.routes, this.routes.length * 2);
+			this.routeChunkOwned = Arrays.copyOf(this.routeChunkOwned,
+					this.routes.length);
+			this.routesOwned = true;
+		}
+		if (!this.routeChunkOwned[c])
+		{
+			if (!this.routesOwned)
+			{
+				this.routes = this.routes.clone();
+				this.routesOwned = true;
+			}
+			if (this.routes[c] != null)
+			{ this.routes[c] = this.routes[c].clone(); }
+			this.routeChunkOwned[c] = true;
+		}
+		if (null == this.routes[c])
+		{ this.routes[c] = new int[(1 << ROUTE_CHUNK_BITS) * ROUTE_SIZE]; }
+		int[] chunk = this.routes[c];
+		int base = (index & ((1 << ROUTE_CHUNK_BITS) - 1)) * ROUTE_SIZE;
+		chunk[base] = entry.getDestinationAddress();
+		chunk[base + 1] = entry.getNextHop().getNumber();
+	}
+
+	/**
+	 * Allocate an index for a route. The returned slot value holds one
+	 * reference, which the caller must release.
+	 */
+	private int allocRoute(RouteEntry entry, int length)
+	{
+		Allocator alloc = this.alloc;
+		int index;
+		if (alloc.freeRouteCount > 0)
+		{ index = alloc.freeRoutes[--alloc.freeRouteCount]; }
+		else
+		{
+			if (alloc.routeCount > INDEX_MASK)
+			{ throw new IllegalStateException("Too many routes for DIR-24-8 index"); }
+			if (alloc.routeCount == alloc.refs.length)
+			{ alloc.refs = grow(alloc.refs); }
+			index = alloc.routeCount++;
+		}
+		this.setRoute(index, entry);
+		alloc.refs[index] = 1;
+		return (length << LENGTH_SHIFT) | index;
+	}
+
+	/**
+	 * Get the overflow block for a primary slot, creating one filled with the
+	 * slot's current value if needed.
+	 * @return overflow block number
+	 */
+	private int blockFor(int i)
+	{
+		int slot = this.getSlot(i);
+		if (slot < 0)
+		{ return slot & ~BLOCK_FLAG; }
+
+		Allocator alloc = this.alloc;
+		int block;
+		if (alloc.freeBlockCount > 0)
+		{ block = alloc.freeBlocks[--alloc.freeBlockCount]; }
+		else
+		{ block = alloc.blockCount++; }
+
+		if (block >= this.blocks.length)
+		{
+			this.blocks = Arrays.copyOf(this.blocks, this.blocks.length * 2);
+			this.blockOwned = Arrays.copyOf(this.blockOwned, this.blocks.length);
+			this.blocksOwned = true;
+		}
+		else if (!this.blocksOwned)
+		{
+			this.blocks = this.blocks.clone();
+			this.blocksOwned = true;
+		}
+
+		int[] slots = new int[BLOCK_SIZE];
+		Arrays.fill(slots, slot);
+		if (slot != 0)
+		{ this.alloc.refs[slot & INDEX_MASK] += BLOCK_SIZE; }
+		this.blocks[block] = slots;
+		this.blockOwned[block] = true;
+
+		this.setSlot(i, BLOCK_FLAG | block);
+		return block;
+	}
+
+	/**
+	 * Release the overflow block for a primary slot if it no longer holds
+	 * any prefix longer than 24 bits.
+	 */
+	private void collapseBlock(int i)
+	{
+		int block = this.getSlot(i) & ~BLOCK_FLAG;
+		int[] slots = this.blocks[block];
+		int slot = slots[0];
+		for (int j = 1; j < BLOCK_SIZE; j++)
+		{
+			if (slots[j] != slot)
+			{ return; }
+		}
+
+		this.setSlot(i, slot);
+		if (slot != 0)
+		{ this.alloc.refs[slot & INDEX_MASK] -= BLOCK_SIZE; }
+
+		// The block may still be read through an older version of the
+		// index, so leave its contents alone and only drop the reference
+		if (!this.blocksOwned)
+		{
+			this.blocks = this.blocks.clone();
+			this.blocksOwned = true;
+		}
+		this.blocks[block] = null;
+		this.blockOwned[block] = false;
+
+		Allocator alloc = this.alloc;
+		if (alloc.freeBlockCount == alloc.freeBlocks.length)
+		{ alloc.freeBlocks = grow(alloc.freeBlocks); }
+		alloc.freeBlocks[alloc.freeBlockCount++] = block;
+	}
+
+	private static int[] grow(int[] array)
+	{
+		int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
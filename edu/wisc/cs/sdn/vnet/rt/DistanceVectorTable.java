@@ -0,0 +1,438 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Distance vector state for RIP: the best known metric to each destination
+ * subnet, the neighbor it was learned from, and the timer that expires it.
+ *
+ * Entries are kept densely in parallel primitive arrays, indexed 0 to
+ * {@link #size()}-1, so advertisements are built by walking the arrays in
+ * order. An open-addressing hash index keyed by the packed address and mask
+ * finds an entry's position. Updating an entry allocates nothing; the arrays
+ * only grow when the table fills.
+ *
+ * Positions are stable except across {@link #remove(int)}, which moves the
+ * last entry into the removed entry's place. The table is not thread-safe;
+ * callers synchronize on it.
+ */
+public class DistanceVectorTable
+{
+	/** Metric of an unreachable destination */
+	public static final int INFINITY = 16;
+
+	/** Default number of entries the table holds before growing */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/** Hash index slot holding no entry */
+	private static final int EMPTY = -1;
+
+	/** Destination address and subnet mask of each entry, packed by
+	 *  {@link #key(int, int)} */
+	private long[] keys;
+
+	/** Metric of each entry */
+	private int[] metrics;
+
+	/** Address of the neighbor each entry was learned from; 0 for directly
+	 *  connected subnets */
+	private int[] nextHops;
+
+	/** Interface each entry was learned on */
+	private Iface[] ifaces;
+
+	/** Whether each entry is a directly connected subnet */
+	private boolean[] local;
+
+	/** Timer driving each entry's expiry; null if the entry never expires */
+	private TimingWheel.Timer[] timers;
+
+	/** Whether each entry's metric or next hop changed since the changes
+	 *  were last taken */
+	private boolean[] changed;
+
+	/** Keys of the changed entries, in the order they first changed */
+	private long[] changedKeys;
+
+	/** Number of keys in {@link #changedKeys} */
+	private int changedCount;
+
+	/** Per-interface advertisements kept up to date with the entries */
+	private RipAdvertisement[] views;
+
+	/** Number of entries */
+	private int size;
+
+	/** Hash index: position of an entry, or {@link #EMPTY} */
+	private int[] slots;
+
+	/**
+	 * Create an empty table.
+	 * @param capacity number of entries the table holds before growing
+	 */
+	public DistanceVectorTable(int capacity)
+	{
+		capacity = Math.max(capacity, 2);
+		this.keys = new long[capacity];
+		this.metrics = new int[capacity];
+		this.nextHops = new int[capacity];
+		this.ifaces = new Iface[capacity];
+		this.local = new boolean[capacity];
+		this.timers = new TimingWheel.Timer[capacity];
+		this.changed = new boolean[capacity];
+		this.changedKeys = new long[capacity];
+		this.changedCount = 0;
+		this.views = new RipAdvertisement[0];
+		this.size = 0;
+		this.slots = newIndex(capacity);
+	}
+
+	/**
+	 * Create an empty table with the default capacity.
+	 */
+	public DistanceVectorTable()
+	{ this(DEFAULT_CAPACITY); }
+
+	/**
+	 * Pack a destination address and subnet mask into a key.
+	 * @param address destination address
+	 * @param mask subnet mask
+	 * @return the key
+	 */
+	public static long key(int address, int mask)
+	{ return ((long)address << 32) | (mask & 0xFFFFFFFFL); }
+
+	private int slot(long key)
+	{
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int)(hash >>> 32) & (this.slots.length - 1);
+	}
+
+	/**
+	 * Find the entry for a destination subnet.
+	 * @param address destination address
+	 * @param mask subnet mask
+	 * @return position of the entry; -1 if there is none
+	 */
+	public int find(int address, int mask)
+	{
+		long key = key(address, mask);
+		int last = this.slots.length - 1;
+		for (int s = this.slot(key); ; s = (s + 1) & last)
+		{
+			int index = this.slots[s];
+			if (EMPTY == index)
+			{ return -1; }
+			if (this.keys[index] == key)
+			{ return index; }
+		}
+	}
+
+	/**
+	 * Add an entry for a destination subnet, or replace the existing one;
+	 * an existing entry keeps its timer.
+	 * @param address destination address
+	 * @param mask subnet mask
+	 * @param metric metric of the destination
+	 * @param nextHop address of the neighbor the entry was learned from; 0
+	 *        for a directly connected subnet
+	 * @param iface interface the entry was learned on
+	 * @param isLocal whether the subnet is directly connected
+	 * @return position of the entry
+	 */
+	public int put(int address, int mask, int metric, int nextHop, Iface iface,
+			boolean isLocal)
+	{
+		int index = this.find(address, mask);
+		if (index < 0)
+		{
+			if (this.size == this.keys.length)
+			{ this.grow(); }
+			index = this.size++;
+			this.keys[index] = key(address, mask);
+			this.timers[index] = null;
+			this.changed[index] = false;
+			this.insertSlot(index);
+		}
+		this.markChanged(index);
+		this.metrics[index] = metric;
+		this.nextHops[index] = nextHop;
+		this.ifaces[index] = iface;
+		this.local[index] = isLocal;
+		this.advertise(index);
+		return index;
+	}
+
+	/**
+	 * Change the metric and neighbor of an entry.
+	 * @param index position of the entry
+	 * @param metric metric of the destination
+	 * @param nextHop address of the neighbor the entry was learned from
+	 * @param iface interface the entry was learned on
+	 */
+	public void update(int index, int metric, int nextHop, Iface iface)
+	{
+		boolean isChange = (metric != this.metrics[index] 
+				|| nextHop != this.nextHops[index] || iface != this.ifaces[index]);
+		this.metrics[index] = metric;
+		this.nextHops[index] = nextHop;
+		this.ifaces[index] = iface;
+		if (isChange)
+		{
+			this.markChanged(index);
+			this.advertise(index);
+		}
+	}
+
+	/**
+	 * Change the metric of an entry without it being heard, such as when it
+	 * times out.
+	 * @param index position of the entry
+	 * @param metric metric of the destination
+	 */
+	public void setMetric(int index, int metric)
+	{
+		if (metric == this.metrics[index])
+		{ return; }
+		this.metrics[index] = metric;
+		this.markChanged(index);
+		this.advertise(index);
+	}
+
+	/**
+	 * Remove an entry. The last entry moves into its position.
+	 * @param index position of the entry
+	 */
+	public void remove(int index)
+	{
+		for (RipAdvertisement view : this.views)
+		{ view.remove(index); }
+		this.removeSlot(index);
+		int last = --this.size;
+		if (index != last)
+		{
+			// Point the index at the last entry's new position
+			int s = this.slot(this.keys[last]);
+			while (this.slots[s] != last)
+			{ s = (s + 1) & (this.slots.length - 1); }
+			this.slots[s] = index;
+
+			this.keys[index] = this.keys[last];
+			this.metrics[index] = this.metrics[last];
+			this.nextHops[index] = this.nextHops[last];
+			this.ifaces[index] = this.ifaces[last];
+			this.local[index] = this.local[last];
+			this.timers[index] = this.timers[last];
+			this.changed[index] = this.changed[last];
+		}
+		this.ifaces[last] = null;
+		this.timers[last] = null;
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * @return destination address of the entry at a position
+	 */
+	public int getAddress(int index)
+	{ return (int)(this.keys[index] >>> 32); }
+
+	/**
+	 * @return subnet mask of the entry at a position
+	 */
+	public int getMask(int index)
+	{ return (int)this.keys[index]; }
+
+	/**
+	 * @return metric of the entry at a position
+	 */
+	public int getMetric(int index)
+	{ return this.metrics[index]; }
+
+	/**
+	 * @return address of the neighbor the entry at a position was learned
+	 *         from; 0 for a directly connected subnet
+	 */
+	public int getNextHop(int index)
+	{ return this.nextHops[index]; }
+
+	/**
+	 * @return interface the entry at a position was learned on
+	 */
+	public Iface getInterface(int index)
+	{ return this.ifaces[index]; }
+
+	/**
+	 * @return true if the entry at a position is a directly connected subnet
+	 */
+	public boolean isLocal(int index)
+	{ return this.local[index]; }
+
+	/**
+	 * @return timer driving the expiry of the entry at a position; null if
+	 *         it never expires
+	 */
+	public TimingWheel.Timer getTimer(int index)
+	{ return this.timers[index]; }
+
+	/**
+	 * @param index position of an entry
+	 * @param timer timer driving the entry's expiry
+	 */
+	public void setTimer(int index, TimingWheel.Timer timer)
+	{ this.timers[index] = timer; }
+
+	/**
+	 * Keep an interface's advertisement up to date with the entries from
+	 * now on, filling it with the current entries.
+	 * @param view the advertisement
+	 */
+	public void addView(RipAdvertisement view)
+	{
+		this.views = Arrays.copyOf(this.views, this.views.length + 1);
+		this.views[this.views.length - 1] = view;
+		for (int i = 0; i < this.size; i++)
+		{
+			view.set(i, this.getAddress(i), this.getMask(i), this.metrics[i],
+					this.ifaces[i], this.local[i]);
+		}
+	}
+
+	private void advertise(int index)
+	{
+		for (RipAdvertisement view : this.views)
+		{
+			view.set(index, this.getAddress(index), this.getMask(index),
+					this.metrics[index], this.ifaces[index], this.local[index]);
+		}
+	}
+
+	private void markChanged(int index)
+	{
+		if (this.changed[index])
+		{ return; }
+		this.changed[index] = true;
+		if (this.changedCount == this.changedKeys.length)
+		{
+			this.changedKeys = Arrays.copyOf(this.changedKeys, 
+					this.changedCount * 2);
+		}
+		this.changedKeys[this.changedCount++] = this.keys[index];
+	}
+
+	/**
+	 * @return true if an entry's metric or next hop changed since the
+	 *         changes were last taken
+	 */
+	public boolean hasChanges()
+	{ return this.changedCount > 0; }
+
+	/**
+	 * Take the entries whose metric or next hop changed since the changes
+	 * were last taken. Entries removed in the meantime are left out.
+	 * @return positions of the changed entries, in the order they first
+	 *         changed
+	 */
+	public int[] takeChanges()
+	{
+		int[] positions = new int[this.changedCount];
+		int count = 0;
+		for (int i = 0; i < this.changedCount; i++)
+		{
+			long key = this.changedKeys[i];
+			int index = this.find((int)(key >>> 32), (int)key);
+			if (index >= 0 && this.changed[index])
+			{
+				this.changed[index] = false;
+				positions[count++] = index;
+			}
+		}
+		this.changedCount = 0;
+		return (count == positions.length) ? positions 
+				: Arrays.copyOf(positions, count);
+	}
+
+	private void insertSlot(int index)
+	{
+		int s = this.slot(this.keys[index]);
+		while (this.slots[s] != EMPTY)
+		{ s = (s + 1) & (this.slots.length - 1); }
+		this.slots[s] = index;
+	}
+
+	/**
+	 * Clear the index slot of an entry, shifting back later entries in its
+	 * probe sequence so lookups never stop short at the hole.
+	 */
+	private void removeSlot(int index)
+	{
+		int last = this.slots.length - 1;
+		int s = this.slot(this.keys[index]);
+		while (this.slots[s] != index)
+		{ s = (s + 1) & last; }
+
+		int hole = s;
+		for (s = (s + 1) & last; this.slots[s] != EMPTY; s = (s + 1) & last)
+		{
+			// Move the entry into the hole unless its home slot lies
+			// cyclically between the hole and where it is now
+			int home = this.slot(this.keys[this.slots[s]]);
+			if (((s - home) & last) >= ((s - hole) & last))
+			{
+				this.slots[hole] = this.slots[s];
+				hole = s;
+			}
+		}
+		this.slots[hole] = EMPTY;
+	}
+
+	/**
+	 * @return an empty hash index for a number of entries, kept at most
+	 *         half full so probe sequences stay short
+	 */
+	private static int[] newIndex(int capacity)
+	{
+		int bits = 32 - Integer.numberOfLeadingZeros(capacity * 2 - 1);
+		int[] slots = new int[1 << bits];
+		Arrays.fill(slots, EMPTY);
+		return slots;
+	}
+
+	private void grow()
+	{
+		int capacity = this.keys.length * 2;
+		this.keys = Arrays.copyOf(this.keys, capacity);
+		this.metrics = Arrays.copyOf(this.metrics, capacity);
+		this.nextHops = Arrays.copyOf(this.nextHops, capacity);
+		this.ifaces = Arrays.copyOf(this.ifaces, capacity);
+		this.local = Arrays.copyOf(this.local, capacity);
+		this.timers = Arrays.copyOf(this.timers, capacity);
+		this.changed = Arrays.copyOf(this.changed, capacity);
+
+		this.slots = newIndex(capacity);
+		for (int i = 0; i < this.size; i++)
+		{ this.insertSlot(i); }
+	}
+
+	public String toString()
+	{
+		String result = "Destination\tMask\t\tMetric\tNext hop\tInterface\n";
+		for (int i = 0; i < this.size; i++)
+		{
+			result += String.format("%s\t%s\t%d\t%s\t%s\n",
+					IPv4.fromIPv4Address(this.getAddress(i)),
+					IPv4.fromIPv4Address(this.getMask(i)), this.metrics[i],
+					IPv4.fromIPv4Address(this.nextHops[i]),
+					(null == this.ifaces[i]) ? "" : this.ifaces[i].getName());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,267 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Reads and writes a compact binary image of a route table, so a router can
+ * restart with its previous routes without parsing a text file or waiting
+ * for RIP to converge.
+ *
+ * The file starts with a 32-byte header: magic number, format version,
+ * number of interfaces, number of routes, a CRC-32 of the rest of the file,
+ * and the size and modification time of the route table file the routes
+ * were loaded from. An image is only read back while that file is
+ * unchanged, so edits to it are not hidden by an older image. The header
+ * is followed by the interface names (one length byte then
+ * the name each) and then one 11-byte record per route: prefix, prefix
+ * length, gateway and interface number. A route with several equal-cost
+ * paths has one record per path, one after another. Routes are written
+ * ancestors first, which is also the cheapest order to insert them in. All
+ * values are big-endian.
+ */
+public class FibSnapshot
+{
+	/** Identifies a route table image ("FIBS") */
+	public static final int MAGIC = 0x46494253;
+
+	/** Current format version */
+	public static final short VERSION = 2;
+
+	private static final int HEADER_SIZE = 32;
+
+	/** Offset of the first byte covered by the CRC */
+	private static final int CRC_START = 16;
+	private static final int RECORD_SIZE = 11;
+
+	/**
+	 * Write an image of a route table. The image is written to a temporary
+	 * file that then replaces the target, so a crash never leaves a partial
+	 * image behind.
+	 * @param table route table to save
+	 * @param filename name of the image file
+	 * @param sourceSize size of the route table file the routes were loaded
+	 *        from
+	 * @param sourceModified modification time of the route table file
+	 * @return number of records written, one per path of each route
+	 * @throws IOException if the image cannot be written
+	 */
+	public static int write(RouteTable table, String filename,
+			long sourceSize, long sourceModified) throws IOException
+	{
+		List<RouteEntry> entries = table.getEntries();
+
+		// Number the interfaces in order of first use
+		List<Iface> ifaces = new ArrayList<Iface>();
+		int nameBytes = 0;
+		int records = 0;
+		for (RouteEntry entry : entries)
+		{
+			NextHop hop = entry.getNextHop();
+			for (int p = 0; p < hop.getPathCount(); p++)
+			{
+				Iface iface = hop.getPath(p).getInterface();
+				if (!ifaces.contains(iface))
+				{
+					ifaces.add(iface);
+					nameBytes += 1 + iface.getName().getBytes().length;
+				}
+			}
+			records += hop.getPathCount();
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + nameBytes
+				+ records * RECORD_SIZE);
+		bb.position(HEADER_SIZE);
+		for (Iface iface : ifaces)
+		{
+			byte[] name = iface.getName().getBytes();
+			bb.put((byte)name.length);
+			bb.put(name);
+		}
+		for (RouteEntry entry : entries)
+		{
+			NextHop hop = entry.getNextHop();
+			for (int p = 0; p < hop.getPathCount(); p++)
+			{
+				bb.putInt(entry.getDestinationAddress());
+				bb.put((byte)PrefixTrie.prefixLength(entry.getMaskAddress()));
+				bb.putInt(hop.getPath(p).getGatewayAddress());
+				bb.putShort((short)ifaces.indexOf(hop.getPath(p).getInterface()));
+			}
+		}
+
+		bb.putLong(16, sourceSize);
+		bb.putLong(24, sourceModified);
+		CRC32 crc = new CRC32();
+		crc.update(bb.array(), CRC_START, bb.capacity() - CRC_START);
+		bb.putInt(0, MAGIC);
+		bb.putShort(4, VERSION);
+		bb.putShort(6, (short)ifaces.size());
+		bb.putInt(8, records);
+		bb.putInt(12, (int)crc.getValue());
+
+		File target = new File(filename);
+		File temp = new File(filename + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try
+		{
+			out.write(bb.array());
+			out.getFD().sync();
+		}
+		finally
+		{ out.close(); }
+		if (!temp.renameTo(target))
+		{
+			temp.delete();
+			throw new IOException("Cannot replace " + filename);
+		}
+		return records;
+	}
+
+	/**
+	 * Add the routes in an image to a route table, publishing them at once.
+	 * @param table route table to populate
+	 * @param filename name of the image file
+	 * @param router router whose interfaces the routes use
+	 * @param sourceSize current size of the route table file
+	 * @param sourceModified current modification time of the route table
+	 *        file
+	 * @return number of records loaded, one per path of each route, or -1 if
+	 *         the image is invalid or was saved from a different version of
+	 *         the route table file
+	 */
+	public static int read(RouteTable table, String filename, Router router,
+			long sourceSize, long sourceModified)
+	{
+		MappedByteBuffer bb;
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			try
+			{
+				FileChannel channel = file.getChannel();
+				if (channel.size() < HEADER_SIZE
+						|| channel.size() > Integer.MAX_VALUE)
+				{
+					System.err.println("Invalid FIB snapshot " + filename);
+					return -1;
+				}
+				bb = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			}
+			finally
+			{ file.close(); }
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return -1;
+		}
+
+		if (bb.getInt(0) != MAGIC || bb.getShort(4) != VERSION)
+		{
+			System.err.println("Invalid FIB snapshot " + filename
+					+ ", bad magic number or version");
+			return -1;
+		}
+		int ifaceCount = bb.getShort(6) & 0xFFFF;
+		int routeCount = bb.getInt(8);
+		int checksum = bb.getInt(12);
+
+		bb.position(CRC_START);
+		CRC32 crc = new CRC32();
+		crc.update(bb);
+		if ((int)crc.getValue() != checksum)
+		{
+			System.err.println("Invalid FIB snapshot " + filename
+					+ ", checksum mismatch");
+			return -1;
+		}
+		if (bb.getLong(16) != sourceSize || bb.getLong(24) != sourceModified)
+		{
+			System.err.println("FIB snapshot " + filename
+					+ " is out of date, route table file has changed");
+			return -1;
+		}
+
+		// Resolve interface names against the router's interfaces
+		bb.position(HEADER_SIZE);
+		Iface[] ifaces = new Iface[ifaceCount];
+		for (int i = 0; i < ifaceCount; i++)
+		{
+			byte[] name = new byte[bb.get() & 0xFF];
+			bb.get(name);
+			ifaces[i] = router.getInterface(new String(name));
+			if (null == ifaces[i])
+			{
+				System.err.println("Error loading FIB snapshot, invalid interface "
+						+ new String(name));
+				return -1;
+			}
+		}
+		if (bb.remaining() != (long)routeCount * RECORD_SIZE)
+		{
+			System.err.println("Invalid FIB snapshot " + filename
+					+ ", wrong number of routes");
+			return -1;
+		}
+
+		// Check every record before changing the table, since a transaction
+		// cannot be rolled back
+		int routesStart = bb.position();
+		for (int i = 0; i < routeCount; i++)
+		{
+			int length = bb.get(bb.position() + 4);
+			int iface = bb.getShort(bb.position() + 9) & 0xFFFF;
+			if (length < 0 || length > 32 || iface >= ifaceCount)
+			{
+				System.err.println("Invalid FIB snapshot " + filename
+						+ ", bad route " + i);
+				return -1;
+			}
+			bb.position(bb.position() + RECORD_SIZE);
+		}
+		bb.position(routesStart);
+
+		RouteTable.Transaction txn = table.begin();
+		try
+		{
+			int lastPrefix = 0;
+			int lastLength = -1;
+			for (int i = 0; i < routeCount; i++)
+			{
+				int prefix = bb.getInt();
+				int length = bb.get();
+				int gateway = bb.getInt();
+				int iface = bb.getShort() & 0xFFFF;
+				// Further records for the same route are equal-cost paths
+				if (prefix == lastPrefix && length == lastLength)
+				{
+					txn.addPath(prefix, gateway, PrefixTrie.mask(length),
+							ifaces[iface]);
+				}
+				else
+				{
+					txn.insert(prefix, gateway, PrefixTrie.mask(length),
+							ifaces[iface]);
+				}
+				lastPrefix = prefix;
+				lastLength = length;
+			}
+		}
+		finally
+		{ txn.commit(); }
+		return routeCount;
+	}
+}
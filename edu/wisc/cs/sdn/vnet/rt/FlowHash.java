@@ -0,0 +1,108 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Hashes the 5-tuple of an IPv4 packet (source and destination address,
+ * protocol, and source and destination port for TCP and UDP), so every
+ * packet of a flow gets the same hash while different flows spread evenly
+ * over the hash's bits.
+ *
+ * The ports of fragments are left out, since only the first fragment has
+ * them, so every fragment of a packet gets the same hash. A parsed packet
+ * and the raw bytes of the same packet get the same hash.
+ */
+public class FlowHash
+{
+	/** Offsets of the IPv4 header fields that are hashed */
+	private static final int IP_FRAGMENT = 6;
+	private static final int IP_PROTOCOL = 9;
+	private static final int IP_SOURCE = 12;
+	private static final int IP_DESTINATION = 16;
+
+	/** Bits of the flags and fragment offset that are set in fragments:
+	 *  more fragments, and the fragment offset */
+	private static final int FRAGMENT_BITS = 0x3FFF;
+
+	/**
+	 * @return hash of an IPv4 packet's 5-tuple; ports are left out for
+	 *         protocols other than TCP and UDP, and for fragments
+	 */
+	public static int hash(IPv4 ipPacket)
+	{
+		short srcPort = 0;
+		short dstPort = 0;
+		IPacket payload = ipPacket.getPayload();
+		boolean isFragment = (ipPacket.getFlags() & 0x1) != 0
+				|| ipPacket.getFragmentOffset() != 0;
+		if (!isFragment && payload instanceof TCP)
+		{
+			srcPort = ((TCP)payload).getSourcePort();
+			dstPort = ((TCP)payload).getDestinationPort();
+		}
+		else if (!isFragment && payload instanceof UDP)
+		{
+			srcPort = ((UDP)payload).getSourcePort();
+			dstPort = ((UDP)payload).getDestinationPort();
+		}
+		return hash(ipPacket.getSourceAddress(),
+				ipPacket.getDestinationAddress(), ipPacket.getProtocol(),
+				srcPort, dstPort);
+	}
+
+	/**
+	 * Hash an IPv4 packet's 5-tuple, reading only its headers.
+	 * @param data buffer holding the packet
+	 * @param offset offset of the IPv4 header; the header must be complete
+	 * @param length length of the packet
+	 * @return the same hash as {@link #hash(IPv4)} gives the parsed packet
+	 */
+	public static int hash(byte[] data, int offset, int length)
+	{
+		int headerLength = (data[offset] & 0xF) * 4;
+		byte protocol = data[offset + IP_PROTOCOL];
+		short srcPort = 0;
+		short dstPort = 0;
+		if ((IPv4.PROTOCOL_TCP == protocol || IPv4.PROTOCOL_UDP == protocol)
+				&& 0 == (getShort(data, offset + IP_FRAGMENT) & FRAGMENT_BITS)
+				&& length >= headerLength + 4)
+		{
+			srcPort = getShort(data, offset + headerLength);
+			dstPort = getShort(data, offset + headerLength + 2);
+		}
+		return hash(getInt(data, offset + IP_SOURCE),
+				getInt(data, offset + IP_DESTINATION), protocol, srcPort,
+				dstPort);
+	}
+
+	/**
+	 * @return hash of a 5-tuple
+	 */
+	public static int hash(int srcAddr, int dstAddr, byte protocol,
+			short srcPort, short dstPort)
+	{
+		long h = ((long)srcAddr << 32) | (dstAddr & 0xFFFFFFFFL);
+		h = h * 0x9E3779B97F4A7C15L ^ (((long)(protocol & 0xFF) << 32)
+				| ((long)(srcPort & 0xFFFF) << 16) | (dstPort & 0xFFFF));
+		// Finalizer from MurmurHash3, so every input bit affects every
+		// output bit
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return (int)h;
+	}
+
+	private static short getShort(byte[] data, int offset)
+	{ return (short)(((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF)); }
+
+	private static int getInt(byte[] data, int offset)
+	{
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+				| ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+}
@@ -0,0 +1,181 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Spreads received frames over worker threads by flow, so frames are handled
+ * on several cores while the frames of each flow stay in order. Each worker
+ * has its own destination cache; otherwise workers only share the route
+ * table and ARP cache, which can be read while they are being updated.
+ */
+public class ForwardingPipeline
+{
+	/** Default number of frames each worker can have waiting */
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/** A received frame waiting for a worker */
+	private static class Frame
+	{
+		private final byte[] data;
+		private final int offset;
+		private final int length;
+		private final Iface inIface;
+
+		private Frame(byte[] data, int offset, int length, Iface inIface)
+		{
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			this.inIface = inIface;
+		}
+	}
+
+	/** Queued behind a worker's last frame to stop it */
+	private static final Frame STOP = new Frame(null, 0, 0, null);
+
+	/** A thread that handles the frames of the flows hashed to it */
+	public class Worker extends Thread
+	{
+		/** Frames waiting to be handled, in the order they were received */
+		private final BlockingQueue<Frame> queue;
+
+		/** Forwarding decisions made by this worker */
+		private final DestinationCache destCache;
+
+		private Worker(int index, int queueSize)
+		{
+			super("forwarding-" + index);
+			this.queue = new ArrayBlockingQueue<Frame>(queueSize);
+			this.destCache = new DestinationCache(DestinationCache.DEFAULT_SIZE);
+			this.setDaemon(true);
+		}
+
+		/**
+		 * @return cache of forwarding decisions made by this worker
+		 */
+		public DestinationCache getDestinationCache()
+		{ return this.destCache; }
+
+		public void run()
+		{
+			while (true)
+			{
+				Frame frame;
+				try
+				{ frame = this.queue.take(); }
+				catch (InterruptedException e)
+				{ return; }
+				if (STOP == frame)
+				{ return; }
+
+				// A bad frame must not take the worker, and every flow
+				// hashed to it, down with it
+				try
+				{
+					ForwardingPipeline.this.router.processFrame(frame.data,
+							frame.offset, frame.length, frame.inIface);
+				}
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		}
+	}
+
+	/** Router the frames are handled by */
+	private final Router router;
+
+	/** Worker threads; a flow is always handled by the same one */
+	private final Worker[] workers;
+
+	/**
+	 * Create a pipeline; its workers are not started until {@link #start()}.
+	 * @param router router the frames are handled by
+	 * @param workerCount number of worker threads
+	 * @param queueSize number of frames each worker can have waiting
+	 */
+	public ForwardingPipeline(Router router, int workerCount, int queueSize)
+	{
+		this.router = router;
+		this.workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++)
+		{ this.workers[i] = new Worker(i, queueSize); }
+	}
+
+	/**
+	 * @return the worker threads
+	 */
+	public Worker[] getWorkers()
+	{ return this.workers; }
+
+	/**
+	 * Start the worker threads.
+	 */
+	public void start()
+	{
+		for (Worker worker : this.workers)
+		{ worker.start(); }
+	}
+
+	/**
+	 * Queue a received frame for the worker its flow hashes to. Waits for
+	 * room if that worker is behind, so frames are never dropped or
+	 * reordered; the frame's buffer must not be reused.
+	 * @param frame buffer holding the frame
+	 * @param offset position of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @param flowHash hash of the frame's flow
+	 */
+	public void dispatch(byte[] frame, int offset, int length, Iface inIface,
+			int flowHash)
+	{
+		// Multipath routes pick a path from the hash's high bits, so take
+		// the worker from its low bits
+		Worker worker = this.workers[(flowHash & 0x7FFFFFFF) % this.workers.length];
+		try
+		{ worker.queue.put(new Frame(frame, offset, length, inIface)); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Let the workers finish the frames already queued, then stop them.
+	 */
+	public void stop()
+	{
+		for (Worker worker : this.workers)
+		{
+			try
+			{ worker.queue.put(STOP); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		for (Worker worker : this.workers)
+		{
+			try
+			{ worker.join(); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public String toString()
+	{
+		String result = "";
+		for (Worker worker : this.workers)
+		{
+			result += String.format("%s: %s\n", worker.getName(),
+					worker.getDestinationCache().toString());
+		}
+		return result;
+	}
+}
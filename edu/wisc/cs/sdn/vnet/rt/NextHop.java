@@ -0,0 +1,179 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Where a route sends packets: a gateway, the router interface out which
+ * to reach it, and the gateway's MAC address once it is known. Every route
+ * with the same gateway and interface shares one next hop, so changing the
+ * next hop redirects all of those routes at once.
+ *
+ * A route with several equal-cost paths instead shares a multipath next
+ * hop, which holds one single-path next hop per path; packets are spread
+ * across the paths by {@link #select(int)}.
+ *
+ * Next hops cannot be modified, apart from their packet counters; a route
+ * table replaces a next hop when it changes, and the replacement keeps the
+ * counter.
+ */
+public class NextHop
+{
+	/** Number of the next hop within its route table */
+	private final int number;
+
+	/** Gateway IP address; 0 for a directly connected subnet */
+	private final int gatewayAddress;
+
+	/** Router interface out which packets should be sent */
+	private final Iface iface;
+
+	/** MAC address of the gateway; null if not yet known */
+	private final MACAddress macAddress;
+
+	/** Gateway as a neighbor to rewrite frames for; null if its MAC address
+	 *  is not yet known */
+	private final Adjacency adjacency;
+
+	/** Number of packets forwarded through the next hop */
+	private final AtomicLong packets;
+
+	/** Equal-cost paths of a multipath next hop; null for a single path */
+	private final NextHop[] paths;
+
+	NextHop(int number, int gatewayAddress, Iface iface, MACAddress macAddress,
+			AtomicLong packets)
+	{
+		this.number = number;
+		this.gatewayAddress = gatewayAddress;
+		this.iface = iface;
+		this.macAddress = macAddress;
+		this.adjacency = (null == macAddress || null == iface.getMacAddress())
+				? null : new Adjacency(iface, macAddress);
+		this.packets = packets;
+		this.paths = null;
+	}
+
+	NextHop(int number, NextHop[] paths)
+	{
+		this.number = number;
+		this.gatewayAddress = paths[0].gatewayAddress;
+		this.iface = paths[0].iface;
+		this.macAddress = paths[0].macAddress;
+		this.adjacency = paths[0].adjacency;
+		this.packets = null;
+		this.paths = paths;
+	}
+
+	/**
+	 * @return number of the next hop within its route table
+	 */
+	public int getNumber()
+	{ return this.number; }
+
+	/**
+	 * @return gateway IP address, of the first path for a multipath next
+	 *         hop; 0 for a directly connected subnet
+	 */
+	public int getGatewayAddress()
+	{ return this.gatewayAddress; }
+
+	/**
+	 * @return the router interface out which packets should be sent, of
+	 *         the first path for a multipath next hop
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * @return MAC address of the gateway; null if not yet known, or if the
+	 *         next hop is a directly connected subnet
+	 */
+	public MACAddress getMacAddress()
+	{ return this.macAddress; }
+
+	/**
+	 * @return the gateway as a neighbor, with the Ethernet header for
+	 *         packets sent to it; null if its MAC address is not yet known,
+	 *         or if the next hop is a directly connected subnet
+	 */
+	public Adjacency getAdjacency()
+	{ return this.adjacency; }
+
+	/**
+	 * @return true if the next hop has more than one path
+	 */
+	public boolean isMultipath()
+	{ return this.paths != null; }
+
+	/**
+	 * @return number of equal-cost paths
+	 */
+	public int getPathCount()
+	{ return (null == this.paths) ? 1 : this.paths.length; }
+
+	/**
+	 * @param i number of a path, from 0 to {@link #getPathCount()} - 1
+	 * @return single-path next hop for the path
+	 */
+	public NextHop getPath(int i)
+	{ return (null == this.paths) ? this : this.paths[i]; }
+
+	/**
+	 * Pick the path for a flow. Every packet of a flow has the same hash, so
+	 * it takes the same path.
+	 * @param hash hash of the flow, see {@link FlowHash}
+	 * @return single-path next hop for the flow
+	 */
+	public NextHop select(int hash)
+	{
+		if (null == this.paths)
+		{ return this; }
+		return this.paths[(int)(((hash & 0xFFFFFFFFL) * this.paths.length) >>> 32)];
+	}
+
+	/**
+	 * Count a packet forwarded through a single-path next hop.
+	 */
+	public void countPacket()
+	{ this.packets.incrementAndGet(); }
+
+	/**
+	 * @return number of packets forwarded through the next hop, summed over
+	 *         its paths for a multipath next hop
+	 */
+	public long getPacketCount()
+	{
+		if (null == this.paths)
+		{ return this.packets.get(); }
+		long count = 0;
+		for (NextHop path : this.paths)
+		{ count += path.getPacketCount(); }
+		return count;
+	}
+
+	/**
+	 * @return counter shared by every version of a single-path next hop
+	 */
+	AtomicLong getCounter()
+	{ return this.packets; }
+
+	public String toString()
+	{
+		if (this.paths != null)
+		{
+			String result = "";
+			for (NextHop path : this.paths)
+			{ result += ((result.length() > 0) ? ", " : "") + path; }
+			return result;
+		}
+		return String.format("%s via %s%s",
+				IPv4.fromIPv4Address(this.gatewayAddress),
+				this.iface.getName(),
+				(null == this.macAddress) ? "" : " at " + this.macAddress);
+	}
+}
@@ -0,0 +1,434 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Numbers the next hops used by routes, so route storage can hold a small
+ * integer instead of a gateway and interface. Number 0 means no next hop.
+ *
+ * A next hop is reference counted by the routes that use it and its number
+ * is reused once no route does. Redirecting a next hop to a gateway and
+ * interface that already have a number leaves two numbers with the same
+ * next hop; the numbers are kept in a ring, so later changes to the next
+ * hop apply to both.
+ *
+ * A multipath next hop gets a number of its own and holds a reference to
+ * each of its paths. Routes with the same set of paths share the number,
+ * and a change to one of the paths rebuilds each multipath next hop that
+ * uses it.
+ *
+ * Like the prefix trie, the table is persistent: its next hops are split
+ * into chunks that are copied on write, and a table must not be modified
+ * after it has been forked.
+ */
+class NextHopTable
+{
+	/** Size (log 2) of a chunk of next hops */
+	private static final int CHUNK_BITS = 8;
+
+	/** Bits of a number that select a next hop within its chunk */
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	/** Next hops by number, indexed by chunk */
+	private NextHop[][] chunks;
+	private boolean chunksOwned;
+	private boolean[] chunkOwned;
+
+	/** State only read by the writer, which carries over to a fork */
+	private Allocator alloc;
+
+	/**
+	 * Reference counts, free list and the number of each gateway and
+	 * interface. Only code holding the route table's writer lock looks at
+	 * these, so a fork takes them over rather than copying them.
+	 */
+	private static class Allocator
+	{
+		/** Number of the next hop for each interface and gateway */
+		Map<Iface,Map<Integer,Integer>> numbers =
+				new HashMap<Iface,Map<Integer,Integer>>();
+
+		/** Number of each multipath next hop, by its sorted path numbers */
+		Map<List<Integer>,Integer> groups =
+				new HashMap<List<Integer>,Integer>();
+
+		/** Numbers of the multipath next hops using each next hop */
+		Map<Integer,List<Integer>> groupsOf =
+				new HashMap<Integer,List<Integer>>();
+
+		/** Number of routes and multipath next hops using each next hop */
+		int[] refs = new int[16];
+
+		/** Neighbors of each number in its ring of numbers with the same
+		 *  next hop */
+		int[] next = new int[16];
+		int[] prev = new int[16];
+
+		/** Number of numbers ever allocated (including number 0) */
+		int count = 1;
+
+		/** Numbers that have been released and can be reused */
+		int[] free = new int[16];
+		int freeCount = 0;
+	}
+
+	/**
+	 * Initialize an empty table.
+	 */
+	NextHopTable()
+	{
+		this.chunks = new NextHop[16][];
+		this.chunksOwned = true;
+		this.chunkOwned = new boolean[this.chunks.length];
+		this.alloc = new Allocator();
+	}
+
+	private NextHopTable(NextHopTable base)
+	{
+		this.chunks = base.chunks;
+		this.chunksOwned = false;
+		this.chunkOwned = new boolean[this.chunks.length];
+		this.alloc = base.alloc;
+	}
+
+	/**
+	 * Create a modifiable copy of this table; this table must not be
+	 * modified after it has been forked.
+	 * @return a copy of the table
+	 */
+	NextHopTable fork()
+	{ return new NextHopTable(this); }
+
+	/**
+	 * @param number number of a next hop
+	 * @return the next hop, or null if the number is not in use
+	 */
+	NextHop get(int number)
+	{
+		NextHop[] chunk = this.chunks[number >>> CHUNK_BITS];
+		return (null == chunk) ? null : chunk[number & CHUNK_MASK];
+	}
+
+	/**
+	 * Find a next hop by gateway and interface; the caller must hold the
+	 * route table's writer lock.
+	 * @return number of the next hop for a gateway and interface, or 0 if no
+	 *         route uses it
+	 */
+	int find(int gatewayAddress, Iface iface)
+	{
+		Map<Integer,Integer> gateways = this.alloc.numbers.get(iface);
+		if (null == gateways)
+		{ return 0; }
+		Integer number = gateways.get(gatewayAddress);
+		return (null == number) ? 0 : number;
+	}
+
+	/**
+	 * List the next hops in use; the caller must hold the route table's
+	 * writer lock.
+	 * @return all single-path next hops in use, one per ring of numbers
+	 */
+	List<NextHop> nextHops()
+	{
+		List<NextHop> result = new ArrayList<NextHop>();
+		for (Map<Integer,Integer> gateways : this.alloc.numbers.values())
+		{
+			for (int number : gateways.values())
+			{ result.add(this.get(number)); }
+		}
+		return result;
+	}
+
+	/**
+	 * Take a reference to the next hop for a gateway and interface, giving
+	 * it a number if no route uses it yet.
+	 * @return number of the next hop
+	 */
+	int acquire(int gatewayAddress, Iface iface)
+	{
+		Allocator alloc = this.alloc;
+		int number = this.find(gatewayAddress, iface);
+		if (number != 0)
+		{
+			alloc.refs[number]++;
+			return number;
+		}
+
+		number = this.allocate();
+		this.map(gatewayAddress, iface, number);
+		this.put(number, new NextHop(number, gatewayAddress, iface, null,
+				new AtomicLong()));
+		return number;
+	}
+
+	/**
+	 * Take a reference to the multipath next hop for a set of paths, giving
+	 * it a number if no route uses it yet. The multipath next hop takes over
+	 * the caller's references to the paths.
+	 * @param paths numbers of at least two single-path next hops
+	 * @return number of the multipath next hop
+	 */
+	int acquireGroup(int[] paths)
+	{
+		Allocator alloc = this.alloc;
+		int[] sorted = paths.clone();
+		Arrays.sort(sorted);
+		List<Integer> key = new ArrayList<Integer>(sorted.length);
+		for (int path : sorted)
+		{ key.add(path); }
+
+		Integer existing = alloc.groups.get(key);
+		if (existing != null)
+		{
+			alloc.refs[existing]++;
+			for (int path : paths)
+			{ this.release(path); }
+			return existing;
+		}
+
+		int number = this.allocate();
+		alloc.groups.put(key, number);
+		for (int path : sorted)
+		{
+			List<Integer> groups = alloc.groupsOf.get(path);
+			if (null == groups)
+			{
+				groups = new ArrayList<Integer>(2);
+				alloc.groupsOf.put(path, groups);
+			}
+			groups.add(number);
+		}
+		NextHop[] hops = new NextHop[paths.length];
+		for (int i = 0; i < paths.length; i++)
+		{ hops[i] = this.get(paths[i]); }
+		this.put(number, new NextHop(number, hops));
+		return number;
+	}
+
+	/**
+	 * @return an unused number, with one reference and a ring of its own
+	 */
+	private int allocate()
+	{
+		Allocator alloc = this.alloc;
+		int number;
+		if (alloc.freeCount > 0)
+		{ number = alloc.free[--alloc.freeCount]; }
+		else
+		{
+			number = alloc.count++;
+			if (number == alloc.refs.length)
+			{
+				int length = alloc.refs.length * 2;
+				alloc.refs = Arrays.copyOf(alloc.refs, length);
+				alloc.next = Arrays.copyOf(alloc.next, length);
+				alloc.prev = Arrays.copyOf(alloc.prev, length);
+			}
+		}
+		alloc.refs[number] = 1;
+		alloc.next[number] = number;
+		alloc.prev[number] = number;
+		return number;
+	}
+
+	/**
+	 * Drop a reference to a next hop, releasing its number if no route uses
+	 * it any more.
+	 */
+	void release(int number)
+	{
+		Allocator alloc = this.alloc;
+		alloc.refs[number]--;
+		if (alloc.refs[number] > 0)
+		{ return; }
+
+		NextHop hop = this.get(number);
+		if (hop.isMultipath())
+		{
+			this.releaseGroup(hop);
+			return;
+		}
+		int next = alloc.next[number];
+		if (this.find(hop.getGatewayAddress(), hop.getInterface()) == number)
+		{
+			if (next != number)
+			{ this.map(hop.getGatewayAddress(), hop.getInterface(), next); }
+			else
+			{ this.unmap(hop.getGatewayAddress(), hop.getInterface()); }
+		}
+		alloc.next[alloc.prev[number]] = next;
+		alloc.prev[next] = alloc.prev[number];
+
+		this.free(number);
+	}
+
+	/**
+	 * Forget a multipath next hop no route uses any more, and drop its
+	 * references to its paths.
+	 */
+	private void releaseGroup(NextHop group)
+	{
+		Allocator alloc = this.alloc;
+		int number = group.getNumber();
+		int[] sorted = new int[group.getPathCount()];
+		for (int i = 0; i < sorted.length; i++)
+		{ sorted[i] = group.getPath(i).getNumber(); }
+		Arrays.sort(sorted);
+		List<Integer> key = new ArrayList<Integer>(sorted.length);
+		for (int path : sorted)
+		{ key.add(path); }
+		alloc.groups.remove(key);
+
+		this.free(number);
+		for (int path : sorted)
+		{
+			List<Integer> groups = alloc.groupsOf.get(path);
+			groups.remove(Integer.valueOf(number));
+			if (groups.isEmpty())
+			{ alloc.groupsOf.remove(path); }
+			this.release(path);
+		}
+	}
+
+	private void free(int number)
+	{
+		Allocator alloc = this.alloc;
+		this.put(number, null);
+		if (alloc.freeCount == alloc.free.length)
+		{ alloc.free = Arrays.copyOf(alloc.free, alloc.freeCount * 2); }
+		alloc.free[alloc.freeCount++] = number;
+	}
+
+	/**
+	 * Change a next hop, and every number sharing it, to a new gateway,
+	 * interface and MAC address.
+	 * @param number number of the next hop
+	 */
+	void set(int number, int gatewayAddress, Iface iface, MACAddress mac)
+	{
+		Allocator alloc = this.alloc;
+		NextHop old = this.get(number);
+		int n = number;
+		do
+		{
+			this.replace(n, gatewayAddress, iface, mac);
+			n = alloc.next[n];
+		} while (n != number);
+
+		if (old.getGatewayAddress() == gatewayAddress
+				&& old.getInterface() == iface)
+		{ return; }
+
+		// Move the ring to its new gateway and interface, joining the ring
+		// already there, if any
+		this.unmap(old.getGatewayAddress(), old.getInterface());
+		int existing = this.find(gatewayAddress, iface);
+		if (0 == existing)
+		{
+			this.map(gatewayAddress, iface, number);
+			return;
+		}
+		int last = alloc.prev[number];
+		int existingLast = alloc.prev[existing];
+		alloc.next[existingLast] = number;
+		alloc.prev[number] = existingLast;
+		alloc.next[last] = existing;
+		alloc.prev[existing] = last;
+
+		// Both rings must agree on the MAC address
+		n = existing;
+		do
+		{
+			this.replace(n, gatewayAddress, iface, mac);
+			n = alloc.next[n];
+		} while (n != number);
+	}
+
+	/**
+	 * Replace a single-path next hop, keeping its packet counter, and
+	 * rebuild the multipath next hops that use it.
+	 */
+	private void replace(int number, int gatewayAddress, Iface iface,
+			MACAddress mac)
+	{
+		NextHop old = this.get(number);
+		this.put(number, new NextHop(number, gatewayAddress, iface, mac,
+				old.getCounter()));
+
+		List<Integer> groups = this.alloc.groupsOf.get(number);
+		if (null == groups)
+		{ return; }
+		for (int g : groups)
+		{
+			NextHop group = this.get(g);
+			NextHop[] hops = new NextHop[group.getPathCount()];
+			for (int i = 0; i < hops.length; i++)
+			{ hops[i] = this.get(group.getPath(i).getNumber()); }
+			this.put(g, new NextHop(g, hops));
+		}
+	}
+
+	/**
+	 * @return number of routes using a next hop
+	 */
+	int getReferences(int number)
+	{ return this.alloc.refs[number]; }
+
+	private void map(int gatewayAddress, Iface iface, int number)
+	{
+		Map<Integer,Integer> gateways = this.alloc.numbers.get(iface);
+		if (null == gateways)
+		{
+			gateways = new HashMap<Integer,Integer>();
+			this.alloc.numbers.put(iface, gateways);
+		}
+		gateways.put(gatewayAddress, number);
+	}
+
+	private void unmap(int gatewayAddress, Iface iface)
+	{
+		Map<Integer,Integer> gateways = this.alloc.numbers.get(iface);
+		gateways.remove(gatewayAddress);
+		if (gateways.isEmpty())
+		{ this.alloc.numbers.remove(iface); }
+	}
+
+	/**
+	 * Store a next hop, first copying its chunk if it is shared with
+	 * another table.
+	 */
+	private void put(int number, NextHop hop)
+	{
+		int c = number >>> CHUNK_BITS;
+		if (c >= this.chunks.length)
+		{
+			this.chunks = Arrays.copyOf(this.chunks, this.chunks.length * 2);
+			this.chunkOwned = Arrays.copyOf(this.chunkOwned, this.chunks.length);
+			this.chunksOwned = true;
+		}
+		if (!this.chunkOwned[c])
+		{
+			if (!this.chunksOwned)
+			{
+				this.chunks = this.chunks.clone();
+				this.chunksOwned = true;
+			}
+			if (this.chunks[c] != null)
+			{ this.chunks[c] = this.chunks[c].clone(); }
+			this.chunkOwned[c] = true;
+		}
+		if (null == this.chunks[c])
+		{ this.chunks[c] = new NextHop[1 << CHUNK_BITS]; }
+		this.chunks[c][number & CHUNK_MASK] = hop;
+	}
+}
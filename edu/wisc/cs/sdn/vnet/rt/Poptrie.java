@@ -0,0 +1,485 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Poptrie longest prefix match index. The top 16 bits of an address
+ * select a slot of a direct table, which holds the best route of length 16
+ * or less for that /16 and, if the /16 contains longer prefixes, a multibit
+ * trie over the remaining 16 bits.
+ *
+ * Each trie node consumes 6 bits of the address and is compressed with two
+ * 64-bit bitmaps: one marks the slots that lead to a child node, the other
+ * marks the slots where a run of identical leaves starts. A node's children
+ * and leaves are stored contiguously, so the position of a slot's child or
+ * leaf is a population count of the bitmap below the slot. A lookup costs
+ * one direct table read and at most three node reads.
+ *
+ * The direct table is split into chunks that are copied on write. The trie
+ * for a /16 is immutable; it is rebuilt from the route table's entries when
+ * a prefix longer than 16 bits within it changes. Rebuilds are deferred
+ * until the index is published, so a batch of changes rebuilds each trie
+ * at most once.
+ */
+public class Poptrie implements RouteIndex
+{
+	/** Number of address bits resolved by the direct table */
+	private static final int DIRECT_BITS = 16;
+
+	/** Number of address bits consumed by a trie node */
+	private static final int STRIDE = 6;
+
+	/** Size (log 2) of a chunk of the direct table */
+	private static final int CHUNK_BITS = 8;
+
+	/** Bits of a direct table index that select a slot within its chunk */
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+
+	/** Number of longs in a trie node: child bitmap, leaf bitmap, bases */
+	private static final int NODE_SIZE = 3;
+
+	/** Number of ints in a trie route: prefix and route info */
+	private static final int ROUTE_SIZE = 2;
+
+	/** Bits of a route info field that hold the prefix length */
+	private static final int LENGTH_MASK = 0x3F;
+
+	/** Position of the next hop number within a route info field; info 0
+	 *  means no route */
+	private static final int HOP_SHIFT = 8;
+
+	/**
+	 * An immutable multibit trie for the low 16 bits of the addresses in a
+	 * /16. Node 0 is the root. Leaves hold route numbers, where 0 means no
+	 * prefix longer than 16 bits matches.
+	 */
+	private static class Subtree
+	{
+		/** For each node: bitmap of slots with a child, bitmap of slots
+		 *  starting a run of leaves, and first leaf (high 32 bits) and first
+		 *  child (low 32 bits) */
+		final long[] nodes;
+
+		/** Route number of each run of leaves */
+		final int[] leaves;
+
+		/** Routes by number; number 0 is never used */
+		final int[] routes;
+
+		Subtree(long[] nodes, int[] leaves, int[] routes)
+		{
+			this.nodes = nodes;
+			this.leaves = leaves;
+			this.routes = routes;
+		}
+
+		long memoryUsage()
+		{
+			return 8L * this.nodes.length + 4L * this.leaves.length
+					+ 4L * this.routes.length;
+		}
+	}
+
+	/** Trie for each /16, indexed by chunk; null if the /16 holds no
+	 *  prefix longer than 16 bits */
+	private Subtree[][] subtrees;
+	private boolean subtreesOwned;
+	private boolean[] subtreeChunkOwned;
+
+	/** Info of the best route of length 16 or less for each /16, indexed
+	 *  by chunk */
+	private int[][] direct;
+	private boolean directOwned;
+	private boolean[] directChunkOwned;
+
+	/** Next hops of the route table the index was last published with */
+	private NextHopTable nextHops;
+
+	/** State only read by the writer, which carries over to a fork */
+	private Pending pending;
+
+	/**
+	 * The /16s whose tries must be rebuilt before the index is published.
+	 * The set is always empty when an index is forked, so a fork takes it
+	 * over rather than creating its own.
+	 */
+	private static class Pending
+	{
+		/** Bitmap of /16s already in the list */
+		long[] marked = new long[1 << (DIRECT_BITS - 6)];
+
+		/** /16s to rebuild */
+		int[] list = new int[16];
+		int count = 0;
+	}
+
+	/**
+	 * Initialize an empty index.
+	 */
+	public Poptrie()
+	{
+		int chunks = 1 << (DIRECT_BITS - CHUNK_BITS);
+		this.subtrees = new Subtree[chunks][];
+		for (int c = 0; c < chunks; c++)
+		{ this.subtrees[c] = new Subtree[1 << CHUNK_BITS]; }
+		this.subtreesOwned = true;
+		this.subtreeChunkOwned = new boolean[chunks];
+		Arrays.fill(this.subtreeChunkOwned, true);
+
+		this.direct = new int[chunks][];
+		for (int c = 0; c < chunks; c++)
+		{ this.direct[c] = new int[1 << CHUNK_BITS]; }
+		this.directOwned = true;
+		this.directChunkOwned = new boolean[chunks];
+		Arrays.fill(this.directChunkOwned, true);
+
+		this.nextHops = null;
+		this.pending = new Pending();
+	}
+
+	private Poptrie(Poptrie base)
+	{
+		this.subtrees = base.subtrees;
+		this.subtreeChunkOwned = new boolean[this.subtrees.length];
+		this.direct = base.direct;
+		this.directChunkOwned = new boolean[this.direct.length];
+		this.nextHops = base.nextHops;
+		this.pending = base.pending;
+	}
+
+	/**
+	 * @return index of the slot an address falls in, within a node whose
+	 *         slots start at the given bit; the last node of a trie only
+	 *         has 4 bits left, which are shifted into the top of the index
+	 */
+	private static int slot(int addr, int offset)
+	{
+		if (offset <= 32 - STRIDE)
+		{ return (addr >>> (32 - STRIDE - offset)) & ((1 << STRIDE) - 1); }
+		return (addr << (offset - (32 - STRIDE))) & ((1 << STRIDE) - 1);
+	}
+
+	public RouteEntry lookup(int ip)
+	{
+		int i = ip >>> (32 - DIRECT_BITS);
+		return this.lookup(ip, this.subtrees[i >>> CHUNK_BITS][i & CHUNK_MASK],
+				this.direct[i >>> CHUNK_BITS][i & CHUNK_MASK]);
+	}
+
+	public void lookupBatch(int[] ips, int count, RouteEntry[] out)
+	{
+		// Read the direct table for every address before walking any trie,
+		// so the cache misses of independent reads overlap instead of each
+		// lookup waiting for its own
+		Subtree[] trees = new Subtree[count];
+		int[] infos = new int[count];
+		for (int k = 0; k < count; k++)
+		{
+			int i = ips[k] >>> (32 - DIRECT_BITS);
+			trees[k] = this.subtrees[i >>> CHUNK_BITS][i & CHUNK_MASK];
+			infos[k] = this.direct[i >>> CHUNK_BITS][i & CHUNK_MASK];
+		}
+		for (int k = 0; k < count; k++)
+		{ out[k] = this.lookup(ips[k], trees[k], infos[k]); }
+	}
+
+	/**
+	 * Finish a lookup once the direct table has been read.
+	 * @param ip IP address
+	 * @param subtree trie for the address's /16, null if none
+	 * @param info direct table info for the address's /16
+	 * @return the matching route entry, null if none exists
+	 */
+	private RouteEntry lookup(int ip, Subtree subtree, int info)
+	{
+		if (subtree != null)
+		{
+			long[] nodes = subtree.nodes;
+			int base = 0;
+			int offset = DIRECT_BITS;
+			while (true)
+			{
+				int v = slot(ip, offset);
+				long below = (2L << v) - 1;
+				long vector = nodes[base];
+				if (((vector >>> v) & 1) != 0)
+				{
+					int child = (int)nodes[base + 2]
+							+ Long.bitCount(vector & below) - 1;
+					base = child * NODE_SIZE;
+					offset += STRIDE;
+					continue;
+				}
+				int leaf = (int)(nodes[base + 2] >>> 32)
+						+ Long.bitCount(nodes[base + 1] & below) - 1;
+				int route = subtree.leaves[leaf] * ROUTE_SIZE;
+				if (route != 0)
+				{
+					int[] routes = subtree.routes;
+					int routeInfo = routes[route + 1];
+					return new RouteEntry(routes[route],
+							PrefixTrie.mask(routeInfo & LENGTH_MASK),
+							this.nextHops.get(routeInfo >>> HOP_SHIFT));
+				}
+				break;
+			}
+		}
+
+		if (0 == info)
+		{ return null; }
+		int mask = PrefixTrie.mask(info & LENGTH_MASK);
+		return new RouteEntry(ip & mask, mask,
+				this.nextHops.get(info >>> HOP_SHIFT));
+	}
+
+	public RouteIndex fork()
+	{ return new Poptrie(this); }
+
+	public void insert(RouteEntry entry)
+	{
+		int prefix = entry.getDestinationAddress();
+		int length = PrefixTrie.prefixLength(entry.getMaskAddress());
+		if (length > DIRECT_BITS)
+		{
+			this.markPending(prefix >>> (32 - DIRECT_BITS));
+			return;
+		}
+
+		int info = length | (entry.getNextHop().getNumber() << HOP_SHIFT);
+		int start = prefix >>> (32 - DIRECT_BITS);
+		int end = start + (1 << (DIRECT_BITS - length));
+		for (int i = start; i < end; i++)
+		{
+			if ((this.getDirect(i) & LENGTH_MASK) <= length)
+			{ this.setDirect(i, info); }
+		}
+	}
+
+	public void remove(int prefix, int length, RouteEntry replacement)
+	{
+		if (length > DIRECT_BITS)
+		{
+			this.markPending(prefix >>> (32 - DIRECT_BITS));
+			return;
+		}
+
+		int info = 0;
+		if (replacement != null)
+		{
+			info = PrefixTrie.prefixLength(replacement.getMaskAddress())
+					| (replacement.getNextHop().getNumber() << HOP_SHIFT);
+		}
+
+		// Slots filled from a prefix of the same length within the removed
+		// range can only have been filled from the removed prefix
+		int start = prefix >>> (32 - DIRECT_BITS);
+		int end = start + (1 << (DIRECT_BITS - length));
+		for (int i = start; i < end; i++)
+		{
+			int old = this.getDirect(i);
+			if (old != 0 && (old & LENGTH_MASK) == length)
+			{ this.setDirect(i, info); }
+		}
+	}
+
+	public void publish(PrefixTrie entries)
+	{
+		Pending pending = this.pending;
+		for (int k = 0; k < pending.count; k++)
+		{
+			int i = pending.list[k];
+			pending.marked[i >>> 6] &= ~(1L << i);
+			this.setSubtree(i, this.build(
+					entries.entries(i << (32 - DIRECT_BITS), DIRECT_BITS)));
+		}
+		pending.count = 0;
+		this.nextHops = entries.getNextHops();
+	}
+
+	public long memoryUsage()
+	{
+		long bytes = 4L * (this.subtrees.length + this.direct.length);
+		for (int[] chunk : this.direct)
+		{ bytes += 4L * chunk.length; }
+		for (Subtree[] chunk : this.subtrees)
+		{
+			bytes += 4L * chunk.length;
+			for (Subtree subtree : chunk)
+			{
+				if (subtree != null)
+				{ bytes += subtree.memoryUsage(); }
+			}
+		}
+		return bytes;
+	}
+
+	private int getDirect(int i)
+	{ return this.direct[i >>> CHUNK_BITS][i & CHUNK_MASK]; }
+
+	private void setDirect(int i, int info)
+	{
+		int c = i >>> CHUNK_BITS;
+		if (!this.directChunkOwned[c])
+		{
+			if (!this.directOwned)
+			{
+				this.direct = this.direct.clone();
+				this.directOwned = true;
+			}
+			this.direct[c] = this.direct[c].clone();
+			this.directChunkOwned[c] = true;
+		}
+		this.direct[c][i & CHUNK_MASK] = info;
+	}
+
+	private void setSubtree(int i, Subtree subtree)
+	{
+		int c = i >>> CHUNK_BITS;
+		if (!this.subtreeChunkOwned[c])
+		{
+			if (!this.subtreesOwned)
+			{
+				this.subtrees = this.subtrees.clone();
+				this.subtreesOwned = true;
+			}
+			this.subtrees[c] = this.subtrees[c].clone();
+			this.subtreeChunkOwned[c] = true;
+		}
+		this.subtrees[c][i & CHUNK_MASK] = subtree;
+	}
+
+	/**
+	 * Remember that the trie for a /16 must be rebuilt.
+	 */
+	private void markPending(int i)
+	{
+		Pending pending = this.pending;
+		if ((pending.marked[i >>> 6] & (1L << i)) != 0)
+		{ return; }
+		pending.marked[i >>> 6] |= 1L << i;
+		if (pending.count == pending.list.length)
+		{ pending.list = Arrays.copyOf(pending.list, pending.count * 2); }
+		pending.list[pending.count++] = i;
+	}
+
+	/**
+	 * Build the trie for a /16.
+	 * @param entries entries within the /16, ordered by prefix
+	 * @return the trie, or null if no entry is longer than 16 bits
+	 */
+	private Subtree build(List<RouteEntry> entries)
+	{
+		List<RouteEntry> longer = new ArrayList<RouteEntry>();
+		for (RouteEntry entry : entries)
+		{
+			if (PrefixTrie.prefixLength(entry.getMaskAddress()) > DIRECT_BITS)
+			{ longer.add(entry); }
+		}
+		if (longer.isEmpty())
+		{ return null; }
+
+		// Routes by number, and the number given to each prefix
+		int[] routes = new int[ROUTE_SIZE * 16];
+		int routeCount = 1;
+		Map<Long,Integer> numbers = new HashMap<Long,Integer>();
+
+		// Nodes are laid out breadth first, so each node's children are
+		// adjacent; these describe the nodes not yet laid out
+		List<List<RouteEntry>> nodeEntries = new ArrayList<List<RouteEntry>>();
+		List<Integer> nodeInherited = new ArrayList<Integer>();
+		List<Integer> nodeOffsets = new ArrayList<Integer>();
+		nodeEntries.add(longer);
+		nodeInherited.add(0);
+		nodeOffsets.add(DIRECT_BITS);
+
+		long[] nodes = new long[NODE_SIZE * 16];
+		int[] leaves = new int[16];
+		int leafCount = 0;
+
+		for (int n = 0; n < nodeEntries.size(); n++)
+		{
+			int offset = nodeOffsets.get(n);
+			int bits = Math.min(STRIDE, 32 - offset);
+
+			// Expand the node: fill each slot with its best route, ancestors
+			// first so longer prefixes override, and set aside the entries
+			// that belong to a child
+			int[] slots = new int[1 << STRIDE];
+			Arrays.fill(slots, nodeInherited.get(n));
+			List<List<RouteEntry>> children = new ArrayList<List<RouteEntry>>(
+					Collections.nCopies(1 << STRIDE, (List<RouteEntry>)null));
+			for (RouteEntry entry : nodeEntries.get(n))
+			{
+				int prefix = entry.getDestinationAddress();
+				int length = PrefixTrie.prefixLength(entry.getMaskAddress());
+				int start = slot(prefix, offset);
+				if (length > offset + bits)
+				{
+					if (null == children.get(start))
+					{ children.set(start, new ArrayList<RouteEntry>()); }
+					children.get(start).add(entry);
+					continue;
+				}
+
+				Long key = ((long)prefix << 6) | length;
+				Integer number = numbers.get(key);
+				if (null == number)
+				{
+					if (routeCount * ROUTE_SIZE == routes.length)
+					{ routes = Arrays.copyOf(routes, routes.length * 2); }
+					int base = routeCount * ROUTE_SIZE;
+					routes[base] = prefix;
+					routes[base + 1] = length
+							| (entry.getNextHop().getNumber() << HOP_SHIFT);
+					number = routeCount++;
+					numbers.put(key, number);
+				}
+				int end = start + (1 << (offset + STRIDE - length));
+				Arrays.fill(slots, start, end, number);
+			}
+
+			// Compress the node
+			long vector = 0;
+			long leafVector = 0;
+			int firstChild = nodeEntries.size();
+			int firstLeaf = leafCount;
+			int previous = -1;
+			for (int v = 0; v < (1 << STRIDE); v++)
+			{
+				if (children.get(v) != null)
+				{
+					vector |= 1L << v;
+					nodeEntries.add(children.get(v));
+					nodeInherited.add(slots[v]);
+					nodeOffsets.add(offset + STRIDE);
+				}
+				else if (slots[v] != previous)
+				{
+					leafVector |= 1L << v;
+					if (leafCount == leaves.length)
+					{ leaves = Arrays.copyOf(leaves, leafCount * 2); }
+					leaves[leafCount++] = slots[v];
+					previous = slots[v];
+				}
+			}
+
+			if ((n + 1) * NODE_SIZE > nodes.length)
+			{ nodes = Arrays.copyOf(nodes, nodes.length * 2); }
+			nodes[n * NODE_SIZE] = vector;
+			nodes[n * NODE_SIZE + 1] = leafVector;
+			nodes[n * NODE_SIZE + 2] = ((long)firstLeaf << 32) | firstChild;
+			nodeEntries.set(n, null);
+		}
+
+		return new Subtree(
+				Arrays.copyOf(nodes, nodeEntries.size() * NODE_SIZE),
+				Arrays.copyOf(leaves, leafCount),
+				Arrays.copyOf(routes, routeCount * ROUTE_SIZE));
+	}
+}
@@ -0,0 +1,560 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A path-compressed (Patricia) binary trie of IPv4 prefixes. Each node
+ * covers a prefix of a given length; nodes that exist only to join two
+ * diverging subtrees carry no route. A longest prefix match visits at most
+ * one node per bit, so lookups are O(32) regardless of table size.
+ *
+ * Nodes are not objects: each node is four consecutive ints (prefix, length
+ * and next hop number, left child, right child) in an array of chunks, and
+ * children are referred to by node number. Routes are stored in their
+ * nodes, and a {@link RouteEntry} is only created when a route is returned
+ * to a caller. Routes refer to shared {@link NextHop}s, which the trie
+ * numbers and reference counts.
+ *
+ * Tries are persistent: {@link #fork()} returns a copy that shares all of
+ * its chunks with the original, and modifying the copy only copies the
+ * chunks holding the nodes it changes. Once forked, a trie must not be
+ * modified again, so readers of it never observe a change.
+ */
+public class PrefixTrie
+{
+	/** Number of ints in a node */
+	private static final int NODE_SIZE = 4;
+
+	/** Offsets of the fields of a node */
+	private static final int PREFIX = 0;
+	private static final int INFO = 1;
+	private static final int LEFT = 2;
+	private static final int RIGHT = 3;
+
+	/** Bits of a node's info field that hold the prefix length */
+	private static final int LENGTH_MASK = 0x3F;
+
+	/** Position of the next hop number within a node's info field; a next
+	 *  hop number of 0 marks a glue node */
+	private static final int HOP_SHIFT = 8;
+
+	/** Size (log 2) of a chunk, in nodes */
+	private static final int CHUNK_BITS = 8;
+
+	/** Bits of a node number that select a node within its chunk */
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	/** Nodes, indexed by chunk then position within the chunk; node 0 is
+	 *  never used, so a child of 0 means no child */
+	private int[][] chunks;
+	private boolean chunksOwned;
+	private boolean[] chunkOwned;
+
+	/** Root node of the trie; 0 if the trie is empty */
+	private int root;
+
+	/** Number of routes in the trie */
+	private int size;
+
+	/** Next hops used by routes in the trie */
+	private NextHopTable nextHops;
+
+	/** State only read by the writer, which carries over to a fork */
+	private Allocator alloc;
+
+	/**
+	 * Free list of node numbers. Readers never look at it, so a fork takes
+	 * it over rather than copying it.
+	 */
+	private static class Allocator
+	{
+		/** Number of nodes ever allocated (including node 0) */
+		int nodeCount = 1;
+
+		/** Nodes that have been released and can be reused */
+		int[] freeNodes = new int[16];
+		int freeNodeCount = 0;
+	}
+
+	/**
+	 * Initialize an empty trie.
+	 */
+	public PrefixTrie()
+	{
+		this.chunks = new int[16][];
+		this.chunksOwned = true;
+		this.chunkOwned = new boolean[this.chunks.length];
+		this.root = 0;
+		this.size = 0;
+		this.nextHops = new NextHopTable();
+		this.alloc = new Allocator();
+	}
+
+	private PrefixTrie(PrefixTrie base)
+	{
+		this.chunks = base.chunks;
+		this.chunksOwned = false;
+		this.chunkOwned = new boolean[this.chunks.length];
+		this.root = base.root;
+		this.size = base.size;
+		this.nextHops = base.nextHops.fork();
+		this.alloc = base.alloc;
+	}
+
+	/**
+	 * Create a modifiable copy of this trie. The copy shares nodes with this
+	 * trie until they are modified; this trie must not be modified after it
+	 * has been forked.
+	 * @return a copy of the trie
+	 */
+	public PrefixTrie fork()
+	{ return new PrefixTrie(this); }
+
+	/**
+	 * @param length number of significant bits in a prefix (0-32)
+	 * @return subnet mask with the given number of leading one bits
+	 */
+	public static int mask(int length)
+	{ return (0 == length) ? 0 : (0xFFFFFFFF << (32 - length)); }
+
+	/**
+	 * @param mask subnet mask
+	 * @return number of leading one bits in the mask; any bits following the
+	 *         first zero bit are ignored
+	 */
+	public static int prefixLength(int mask)
+	{ return Integer.numberOfLeadingZeros(~mask); }
+
+	/**
+	 * @param addr IP address or prefix
+	 * @param pos bit position, where 0 is the most significant bit
+	 * @return true if the bit at the given position is set
+	 */
+	private static boolean bitSet(int addr, int pos)
+	{ return ((addr >>> (31 - pos)) & 1) != 0; }
+
+	/**
+	 * @return number of route entries in the trie
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * Find the entry with the longest prefix matching an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip)
+	{ return this.lookup(ip, 32); }
+
+	/**
+	 * Find the entry with the longest prefix, no longer than a given length,
+	 * matching an IP address.
+	 * @param ip IP address
+	 * @param maxLength maximum number of significant bits in the prefix
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip, int maxLength)
+	{
+		int bestMatch = 0;
+		int node = this.root;
+		while (node != 0)
+		{
+			int[] chunk = this.chunks[node >>> CHUNK_BITS];
+			int base = (node & CHUNK_MASK) * NODE_SIZE;
+			int info = chunk[base + INFO];
+			int length = info & LENGTH_MASK;
+			if (length > maxLength || (ip & mask(length)) != chunk[base + PREFIX])
+			{ break; }
+			if ((info >>> HOP_SHIFT) != 0)
+			{ bestMatch = node; }
+			if (32 == length)
+			{ break; }
+			node = chunk[base + (bitSet(ip, length) ? RIGHT : LEFT)];
+		}
+		return this.view(bestMatch);
+	}
+
+	/**
+	 * Find the entry for an exact prefix.
+	 * @param prefix canonical prefix (bits beyond length must be zero)
+	 * @param length number of significant bits in the prefix
+	 * @return the entry for the prefix, null if none exists
+	 */
+	public RouteEntry get(int prefix, int length)
+	{
+		int node = this.root;
+		while (node != 0 && this.length(node) <= length)
+		{
+			int nodeLength = this.length(node);
+			if ((prefix & mask(nodeLength)) != this.read(node, PREFIX))
+			{ return null; }
+			if (nodeLength == length)
+			{ return this.view(node); }
+			node = this.child(node, prefix);
+		}
+		return null;
+	}
+
+	/**
+	 * @return next hops used by routes in the trie
+	 */
+	NextHopTable getNextHops()
+	{ return this.nextHops; }
+
+	/**
+	 * Add or replace the entry for a prefix.
+	 * @param prefix canonical prefix (bits beyond length must be zero)
+	 * @param length number of significant bits in the prefix
+	 * @param gatewayAddress gateway IP address for the prefix
+	 * @param iface router interface out which to send packets for the prefix
+	 * @return the entry previously stored for the prefix, null if none
+	 */
+	public RouteEntry put(int prefix, int length, int gatewayAddress,
+			Iface iface)
+	{
+		return this.put(prefix, length,
+				this.nextHops.acquire(gatewayAddress, iface));
+	}
+
+	/**
+	 * Add or replace the entry for a prefix with several equal-cost paths.
+	 * @param prefix canonical prefix (bits beyond length must be zero)
+	 * @param length number of significant bits in the prefix
+	 * @param gatewayAddresses gateway IP address of each path
+	 * @param ifaces router interface of each path
+	 * @return the entry previously stored for the prefix, null if none
+	 */
+	public RouteEntry put(int prefix, int length, int[] gatewayAddresses,
+			Iface[] ifaces)
+	{
+		if (1 == gatewayAddresses.length)
+		{ return this.put(prefix, length, gatewayAddresses[0], ifaces[0]); }
+		int[] paths = new int[gatewayAddresses.length];
+		for (int i = 0; i < paths.length; i++)
+		{ paths[i] = this.nextHops.acquire(gatewayAddresses[i], ifaces[i]); }
+		return this.put(prefix, length, this.nextHops.acquireGroup(paths));
+	}
+
+	/**
+	 * Add or replace the entry for a prefix, taking over a reference to its
+	 * next hop.
+	 */
+	private RouteEntry put(int prefix, int length, int nextHop)
+	{
+		int info = length | (nextHop << HOP_SHIFT);
+
+		int parent = 0;
+		int node = this.root;
+		while (node != 0)
+		{
+			int nodeLength = this.length(node);
+			int common = Math.min(Math.min(length, nodeLength),
+					Integer.numberOfLeadingZeros(prefix ^ this.read(node, PREFIX)));
+
+			if (common == nodeLength && common == length)
+			{
+				// Exact match; replace the node's route
+				RouteEntry old = this.view(node);
+				this.write(node, INFO, info);
+				if (null == old)
+				{ this.size++; }
+				else
+				{ this.nextHops.release(old.getNextHop().getNumber()); }
+				return old;
+			}
+
+			if (common == nodeLength)
+			{
+				// Node covers the new prefix; descend
+				parent = node;
+				node = this.child(node, prefix);
+				continue;
+			}
+
+			// New prefix covers the node, or the two diverge; either way the
+			// node is replaced by a node of length common
+			int added = this.allocNode(prefix, info);
+			int top = added;
+			if (common == length)
+			{ this.attach(added, node); }
+			else
+			{
+				top = this.allocNode(prefix & mask(common), common);
+				this.attach(top, node);
+				this.attach(top, added);
+			}
+			this.link(parent, top);
+			this.size++;
+			return null;
+		}
+
+		// Fell off the trie; hang a new leaf here
+		this.link(parent, this.allocNode(prefix, info));
+		this.size++;
+		return null;
+	}
+
+	/**
+	 * Remove the entry for a prefix.
+	 * @param prefix canonical prefix (bits beyond length must be zero)
+	 * @param length number of significant bits in the prefix
+	 * @return the entry that was removed, null if none existed
+	 */
+	public RouteEntry remove(int prefix, int length)
+	{
+		// Track the node's grandparent so glue nodes left with a single child
+		// can be spliced out
+		int grandparent = 0;
+		int parent = 0;
+		int node = this.root;
+		while (node != 0 && this.length(node) < length)
+		{
+			if ((prefix & mask(this.length(node))) != this.read(node, PREFIX))
+			{ return null; }
+			grandparent = parent;
+			parent = node;
+			node = this.child(node, prefix);
+		}
+		if (0 == node || this.length(node) != length
+				|| this.read(node, PREFIX) != prefix
+				|| 0 == (this.read(node, INFO) >>> HOP_SHIFT))
+		{ return null; }
+
+		RouteEntry old = this.view(node);
+		this.nextHops.release(old.getNextHop().getNumber());
+		this.size--;
+
+		int left = this.read(node, LEFT);
+		int right = this.read(node, RIGHT);
+		if (left != 0 && right != 0)
+		{
+			// Still needed as glue
+			this.write(node, INFO, length);
+			return old;
+		}
+
+		int child = (left != 0) ? left : right;
+		this.replaceChild(parent, node, child);
+		this.freeNode(node);
+
+		// Parent may now be a glue node with a single child
+		if (parent != 0 && 0 == (this.read(parent, INFO) >>> HOP_SHIFT)
+				&& 0 == child)
+		{
+			int sibling = this.read(parent, LEFT);
+			if (0 == sibling)
+			{ sibling = this.read(parent, RIGHT); }
+			this.replaceChild(grandparent, parent, sibling);
+			this.freeNode(parent);
+		}
+		return old;
+	}
+
+	/**
+	 * @return all route entries in the trie, ordered by prefix
+	 */
+	public List<RouteEntry> entries()
+	{ return this.entries(0, 0); }
+
+	/**
+	 * Find the entries whose prefixes lie within a given prefix.
+	 * @param prefix canonical prefix (bits beyond length must be zero)
+	 * @param length number of significant bits in the prefix
+	 * @return matching route entries, including any for the prefix itself,
+	 *         ordered by prefix
+	 */
+	public List<RouteEntry> entries(int prefix, int length)
+	{
+		List<RouteEntry> result = new ArrayList<RouteEntry>();
+
+		// Find the highest node within the prefix
+		int node = this.root;
+		while (node != 0 && this.length(node) < length)
+		{
+			if ((prefix & mask(this.length(node))) != this.read(node, PREFIX))
+			{ return result; }
+			node = this.child(node, prefix);
+		}
+		if (0 == node || (this.read(node, PREFIX) & mask(length)) != prefix)
+		{ return result; }
+
+		// Each level of the trie leaves at most one right child waiting
+		int[] stack = new int[34];
+		int depth = 0;
+		stack[depth++] = node;
+		while (depth > 0)
+		{
+			node = stack[--depth];
+			if ((this.read(node, INFO) >>> HOP_SHIFT) != 0)
+			{ result.add(this.view(node)); }
+			int right = this.read(node, RIGHT);
+			if (right != 0)
+			{ stack[depth++] = right; }
+			int left = this.read(node, LEFT);
+			if (left != 0)
+			{ stack[depth++] = left; }
+		}
+		return result;
+	}
+
+	/**
+	 * @return approximate number of bytes used by the trie's nodes
+	 */
+	public long memoryUsage()
+	{
+		long bytes = 4L * this.chunks.length + 4L * this.alloc.freeNodes.length;
+		for (int[] chunk : this.chunks)
+		{
+			if (chunk != null)
+			{ bytes += 4L * chunk.length; }
+		}
+		return bytes;
+	}
+
+	/**
+	 * Create the route entry stored in a node.
+	 * @return the entry, or null for node 0 or a glue node
+	 */
+	private RouteEntry view(int node)
+	{
+		if (0 == node)
+		{ return null; }
+		int[] chunk = this.chunks[node >>> CHUNK_BITS];
+		int base = (node & CHUNK_MASK) * NODE_SIZE;
+		int info = chunk[base + INFO];
+		if (0 == (info >>> HOP_SHIFT))
+		{ return null; }
+		return new RouteEntry(chunk[base + PREFIX], mask(info & LENGTH_MASK),
+				this.nextHops.get(info >>> HOP_SHIFT));
+	}
+
+	private int read(int node, int field)
+	{
+		return this.chunks[node >>> CHUNK_BITS]
+				[(node & CHUNK_MASK) * NODE_SIZE + field];
+	}
+
+	private int length(int node)
+	{ return this.read(node, INFO) & LENGTH_MASK; }
+
+	/**
+	 * @return the child of a node on the side given by a prefix's next bit
+	 */
+	private int child(int node, int prefix)
+	{
+		return this.read(node, bitSet(prefix, this.length(node))
+				? RIGHT : LEFT);
+	}
+
+	/**
+	 * Set a field of a node, first copying the node's chunk if it is shared
+	 * with another trie.
+	 */
+	private void write(int node, int field, int value)
+	{
+		int c = node >>> CHUNK_BITS;
+		if (!this.chunkOwned[c])
+		{
+			if (!this.chunksOwned)
+			{
+				this.chunks = this.chunks.clone();
+				this.chunksOwned = true;
+			}
+			this.chunks[c] = this.chunks[c].clone();
+			this.chunkOwned[c] = true;
+		}
+		this.chunks[c][(node & CHUNK_MASK) * NODE_SIZE + field] = value;
+	}
+
+	/**
+	 * Allocate a node with no children.
+	 * @return number of the node
+	 */
+	private int allocNode(int prefix, int info)
+	{
+		Allocator alloc = this.alloc;
+		int node;
+		if (alloc.freeNodeCount > 0)
+		{ node = alloc.freeNodes[--alloc.freeNodeCount]; }
+		else
+		{ node = alloc.nodeCount++; }
+
+		int c = node >>> CHUNK_BITS;
+		if (c >= this.chunks.length)
+		{
+			this.chunks = Arrays.copyOf(this.chunks, this.chunks.length * 2);
+			this.chunkOwned = Arrays.copyOf(this.chunkOwned, this.chunks.length);
+			this.chunksOwned = true;
+		}
+		if (null == this.chunks[c])
+		{
+			// A chunk no other trie has seen
+			if (!this.chunksOwned)
+			{
+				this.chunks = this.chunks.clone();
+				this.chunksOwned = true;
+			}
+			this.chunks[c] = new int[(1 << CHUNK_BITS) * NODE_SIZE];
+			this.chunkOwned[c] = true;
+		}
+
+		this.write(node, PREFIX, prefix);
+		this.write(node, INFO, info);
+		this.write(node, LEFT, 0);
+		this.write(node, RIGHT, 0);
+		return node;
+	}
+
+	/**
+	 * Release a node that is no longer linked into the trie. Older versions
+	 * of the trie may still read it, but they hold their own copy of its
+	 * chunk by the time it is reused.
+	 */
+	private void freeNode(int node)
+	{
+		Allocator alloc = this.alloc;
+		if (alloc.freeNodeCount == alloc.freeNodes.length)
+		{ alloc.freeNodes = Arrays.copyOf(alloc.freeNodes, alloc.freeNodes.length * 2); }
+		alloc.freeNodes[alloc.freeNodeCount++] = node;
+	}
+
+	/**
+	 * Attach a node below a shorter covering node.
+	 */
+	private void attach(int parent, int child)
+	{
+		if (bitSet(this.read(child, PREFIX), this.length(parent)))
+		{ this.write(parent, RIGHT, child); }
+		else
+		{ this.write(parent, LEFT, child); }
+	}
+
+	/**
+	 * Make a node a child of a shorter covering node, or the root.
+	 */
+	private void link(int parent, int child)
+	{
+		if (0 == parent)
+		{ this.root = child; }
+		else
+		{ this.attach(parent, child); }
+	}
+
+	/**
+	 * Substitute one child of a node (or the root) for another.
+	 */
+	private void replaceChild(int parent, int oldChild, int newChild)
+	{
+		if (0 == parent)
+		{ this.root = newChild; }
+		else if (this.read(parent, LEFT) == oldChild)
+		{ this.write(parent, LEFT, newChild); }
+		else
+		{ this.write(parent, RIGHT, newChild); }
+	}
+}
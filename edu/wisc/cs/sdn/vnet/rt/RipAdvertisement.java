@@ -0,0 +1,337 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.RIPv2;
+import net.floodlightcontroller.packet.RIPv2Entry;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * The RIP routes advertised out one interface, with split horizon and
+ * poisoned reverse applied: a route learned on the interface is advertised
+ * back out it as unreachable, so the neighbor it came from never routes
+ * through this router to reach it.
+ *
+ * An advertisement has one slot per entry of the distance vector table it
+ * is attached to, at the same positions, and is updated by the table as
+ * each entry changes. Sending it is then a walk over its slots, with no
+ * filtering of the table.
+ *
+ * The advertisement is also kept as the Ethernet frames of the RIPv2
+ * responses multicast out the interface, {@link #MAX_ENTRIES} routes per
+ * frame. When a slot changes only its 20 bytes are encoded again; the
+ * lengths and checksums of a frame are brought up to date when it is next
+ * sent. A periodic update is then a copy of each frame.
+ */
+public class RipAdvertisement
+{
+	/** Most routes in one RIP message */
+	public static final int MAX_ENTRIES = 25;
+
+	/** Length of an encoded route */
+	public static final int ENTRY_SIZE = 20;
+
+	/** Offsets of the headers in a frame */
+	private static final int IP_OFFSET = 14;
+	private static final int UDP_OFFSET = IP_OFFSET + 20;
+	private static final int RIP_OFFSET = UDP_OFFSET + 8;
+	private static final int ENTRY_OFFSET = RIP_OFFSET + 4;
+
+	/** Time to live of sent messages */
+	private static final byte TTL = 64;
+
+	/** Multicast address RIP messages are sent to */
+	private static final int RIP_ADDRESS = IPv4.toIPv4Address("224.0.0.9");
+
+	/** Broadcast MAC address RIP messages are sent to */
+	private static final byte[] BROADCAST_MAC = 
+			new byte[] { -1, -1, -1, -1, -1, -1 };
+
+	/** Interface the routes are advertised out */
+	private final Iface iface;
+
+	/** Destination address of each slot */
+	private int[] addresses;
+
+	/** Subnet mask of each slot */
+	private int[] masks;
+
+	/** Metric advertised in each slot */
+	private int[] metrics;
+
+	/** Number of slots */
+	private int size;
+
+	/** Encoded multicast response holding each run of MAX_ENTRIES slots;
+	 *  each frame has room for MAX_ENTRIES routes */
+	private byte[][] frames;
+
+	/** Whether each frame's lengths and checksums are out of date */
+	private boolean[] stale;
+
+	/**
+	 * Create an empty advertisement.
+	 * @param iface interface the routes are advertised out
+	 * @param capacity number of slots to make room for
+	 */
+	public RipAdvertisement(Iface iface, int capacity)
+	{
+		capacity = Math.max(capacity, 2);
+		this.iface = iface;
+		this.addresses = new int[capacity];
+		this.masks = new int[capacity];
+		this.metrics = new int[capacity];
+		this.size = 0;
+		this.frames = new byte[0][];
+		this.stale = new boolean[0];
+	}
+
+	/**
+	 * @return interface the routes are advertised out
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * @return number of routes advertised
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * @return destination address of the route in a slot
+	 */
+	public int getAddress(int position)
+	{ return this.addresses[position]; }
+
+	/**
+	 * @return subnet mask of the route in a slot
+	 */
+	public int getMask(int position)
+	{ return this.masks[position]; }
+
+	/**
+	 * @return metric advertised for the route in a slot
+	 */
+	public int getMetric(int position)
+	{ return this.metrics[position]; }
+
+	/**
+	 * Set the route in a slot, appending a slot if the position is one
+	 * past the last.
+	 * @param position position of the route's distance vector entry
+	 * @param address destination address
+	 * @param mask subnet mask
+	 * @param metric metric of the route
+	 * @param learnedOn interface the route was learned on
+	 * @param isLocal whether the route is a directly connected subnet
+	 */
+	void set(int position, int address, int mask, int metric, Iface learnedOn,
+			boolean isLocal)
+	{
+		if (position == this.size)
+		{
+			if (this.size == this.addresses.length)
+			{ this.grow(); }
+			this.size++;
+		}
+		this.addresses[position] = address;
+		this.masks[position] = mask;
+
+		// Directly connected subnets are reachable from every neighbor on
+		// them, so only learned routes are poisoned
+		this.metrics[position] = (learnedOn == this.iface && !isLocal)
+				? DistanceVectorTable.INFINITY : metric;
+		this.encodeSlot(position);
+	}
+
+	/**
+	 * Remove the route in a slot. The last slot moves into its position,
+	 * as the distance vector table's last entry does.
+	 * @param position position of the route
+	 */
+	void remove(int position)
+	{
+		int last = --this.size;
+		this.addresses[position] = this.addresses[last];
+		this.masks[position] = this.masks[last];
+		this.metrics[position] = this.metrics[last];
+		if (position != last)
+		{ this.encodeSlot(position); }
+
+		// The last frame is one route shorter
+		int message = last / MAX_ENTRIES;
+		this.stale[message] = true;
+	}
+
+	/**
+	 * @return number of frames the multicast response takes
+	 */
+	public int getFrameCount()
+	{ return (this.size + MAX_ENTRIES - 1) / MAX_ENTRIES; }
+
+	/**
+	 * Get a frame of the multicast response, ready to send. The buffer is
+	 * reused as routes change, so it must be copied before it is queued.
+	 * @param message number of the frame
+	 * @return buffer holding the frame at offset 0
+	 */
+	public byte[] getFrame(int message)
+	{
+		byte[] frame = this.frames[message];
+		if (this.stale[message])
+		{
+			this.finish(frame, this.getFrameLength(message));
+			this.stale[message] = false;
+		}
+		return frame;
+	}
+
+	/**
+	 * @param message number of a frame of the multicast response
+	 * @return length of the frame
+	 */
+	public int getFrameLength(int message)
+	{
+		int routes = Math.min(MAX_ENTRIES, this.size - message * MAX_ENTRIES);
+		return ENTRY_OFFSET + routes * ENTRY_SIZE;
+	}
+
+	/**
+	 * Encode a response holding some of the routes into a new frame.
+	 * @param positions positions of the routes; null for consecutive slots
+	 * @param from index in positions, or slot, of the first route
+	 * @param count number of routes; at most {@link #MAX_ENTRIES}
+	 * @param dstIp IP address to send the response to
+	 * @param dstMac MAC address to send the response to
+	 * @return the frame
+	 */
+	public byte[] encodeFrame(int[] positions, int from, int count, int dstIp,
+			byte[] dstMac)
+	{
+		byte[] frame = new byte[ENTRY_OFFSET + count * ENTRY_SIZE];
+		this.writeHeaders(frame, dstIp, dstMac);
+		for (int n = 0; n < count; n++)
+		{
+			int position = (null == positions) ? from + n : positions[from + n];
+			writeEntry(frame, ENTRY_OFFSET + n * ENTRY_SIZE, 
+					this.addresses[position], this.masks[position], 
+					this.metrics[position]);
+		}
+		this.finish(frame, frame.length);
+		return frame;
+	}
+
+	/**
+	 * Encode a slot into the multicast response frame it belongs to.
+	 */
+	private void encodeSlot(int position)
+	{
+		int message = position / MAX_ENTRIES;
+		if (message == this.frames.length)
+		{
+			this.frames = Arrays.copyOf(this.frames, message + 1);
+			this.stale = Arrays.copyOf(this.stale, message + 1);
+			this.frames[message] = 
+					new byte[ENTRY_OFFSET + MAX_ENTRIES * ENTRY_SIZE];
+			this.writeHeaders(this.frames[message], RIP_ADDRESS, BROADCAST_MAC);
+		}
+		writeEntry(this.frames[message], 
+				ENTRY_OFFSET + (position % MAX_ENTRIES) * ENTRY_SIZE,
+				this.addresses[position], this.masks[position], 
+				this.metrics[position]);
+		this.stale[message] = true;
+	}
+
+	/**
+	 * Write the parts of the headers of a response that do not depend on
+	 * its routes.
+	 */
+	private void writeHeaders(byte[] frame, int dstIp, byte[] dstMac)
+	{
+		System.arraycopy(dstMac, 0, frame, 0, Ethernet.DATALAYER_ADDRESS_LENGTH);
+		System.arraycopy(this.iface.getMacAddress().toBytes(), 0, frame, 
+				Ethernet.DATALAYER_ADDRESS_LENGTH, 
+				Ethernet.DATALAYER_ADDRESS_LENGTH);
+		putShort(frame, 12, Ethernet.TYPE_IPv4);
+
+		frame[IP_OFFSET] = 0x45;
+		frame[IP_OFFSET + 8] = TTL;
+		frame[IP_OFFSET + 9] = IPv4.PROTOCOL_UDP;
+		putInt(frame, IP_OFFSET + 12, this.iface.getIpAddress());
+		putInt(frame, IP_OFFSET + 16, dstIp);
+
+		putShort(frame, UDP_OFFSET, UDP.RIP_PORT);
+		putShort(frame, UDP_OFFSET + 2, UDP.RIP_PORT);
+
+		frame[RIP_OFFSET] = RIPv2.COMMAND_RESPONSE;
+		frame[RIP_OFFSET + 1] = RIPv2.VERSION;
+	}
+
+	/**
+	 * Fill in the lengths and checksums of a response.
+	 * @param frame buffer holding the response
+	 * @param length length of the response
+	 */
+	private void finish(byte[] frame, int length)
+	{
+		int udpLength = length - UDP_OFFSET;
+		putShort(frame, IP_OFFSET + 2, (short)(length - IP_OFFSET));
+		putShort(frame, IP_OFFSET + 10, (short)0);
+		putShort(frame, IP_OFFSET + 10, 
+				IPv4.computeChecksum(frame, IP_OFFSET, UDP_OFFSET - IP_OFFSET));
+
+		// The UDP checksum also covers a pseudo-header of the addresses,
+		// protocol and UDP length
+		putShort(frame, UDP_OFFSET + 4, (short)udpLength);
+		putShort(frame, UDP_OFFSET + 6, (short)0);
+		int sum = (~IPv4.computeChecksum(frame, UDP_OFFSET, udpLength)) & 0xffff;
+		for (int i = IP_OFFSET + 12; i < UDP_OFFSET; i += 2)
+		{ sum += ((frame[i] & 0xff) << 8) | (frame[i + 1] & 0xff); }
+		sum += IPv4.PROTOCOL_UDP + udpLength;
+		sum = (sum & 0xffff) + (sum >>> 16);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		short checksum = (short)~sum;
+		putShort(frame, UDP_OFFSET + 6, (0 == checksum) ? (short)0xffff : checksum);
+	}
+
+	/**
+	 * Encode a route as {@link RIPv2Entry#serialize()} does.
+	 */
+	private static void writeEntry(byte[] frame, int offset, int address,
+			int mask, int metric)
+	{
+		putShort(frame, offset, RIPv2Entry.ADDRESS_FAMILY_IPv4);
+		putShort(frame, offset + 2, (short)0);
+		putInt(frame, offset + 4, address);
+		putInt(frame, offset + 8, mask);
+		putInt(frame, offset + 12, 0);
+		putInt(frame, offset + 16, metric);
+	}
+
+	private static void putShort(byte[] data, int offset, short value)
+	{
+		data[offset] = (byte)(value >> 8);
+		data[offset + 1] = (byte)value;
+	}
+
+	private static void putInt(byte[] data, int offset, int value)
+	{
+		data[offset] = (byte)(value >> 24);
+		data[offset + 1] = (byte)(value >> 16);
+		data[offset + 2] = (byte)(value >> 8);
+		data[offset + 3] = (byte)value;
+	}
+
+	private void grow()
+	{
+		int capacity = this.addresses.length * 2;
+		this.addresses = Arrays.copyOf(this.addresses, capacity);
+		this.masks = Arrays.copyOf(this.masks, capacity);
+		this.metrics = Arrays.copyOf(this.metrics, capacity);
+	}
+}
@@ -0,0 +1,168 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A list of route additions, changes and withdrawals to be applied to a
+ * route table at once with {@link RouteTable#applyBatch(RouteBatch)}.
+ * Operations are applied in the order they were added to the batch.
+ */
+public class RouteBatch
+{
+	/** Kinds of operation in a batch */
+	public enum Type
+	{
+		/** Add a route, or replace the route for the same prefix */
+		ADD,
+		/** Add an equal-cost path to a route, or add the route */
+		ADD_PATH,
+		/** Remove an equal-cost path from a route, or the route if it has
+		 *  no other path */
+		REMOVE_PATH,
+		/** Change the gateway and interface of an existing route */
+		CHANGE,
+		/** Remove an existing route */
+		WITHDRAW
+	}
+
+	/** A single operation in a batch */
+	public static class Operation
+	{
+		private Type type;
+		private int destinationAddress;
+		private int maskAddress;
+		private int gatewayAddress;
+		private Iface iface;
+
+		private Operation(Type type, int destinationAddress, int maskAddress,
+				int gatewayAddress, Iface iface)
+		{
+			this.type = type;
+			this.destinationAddress = destinationAddress;
+			this.maskAddress = maskAddress;
+			this.gatewayAddress = gatewayAddress;
+			this.iface = iface;
+		}
+
+		public Type getType()
+		{ return this.type; }
+
+		public int getDestinationAddress()
+		{ return this.destinationAddress; }
+
+		public int getMaskAddress()
+		{ return this.maskAddress; }
+
+		public int getGatewayAddress()
+		{ return this.gatewayAddress; }
+
+		public Iface getInterface()
+		{ return this.iface; }
+	}
+
+	/** Operations in the batch, in the order they are applied */
+	private List<Operation> operations;
+
+	/**
+	 * Create an empty batch.
+	 */
+	public RouteBatch()
+	{ this.operations = new ArrayList<Operation>(); }
+
+	/**
+	 * Add a route, replacing any route for the same destination and mask.
+	 * @param dstIp destination IP
+	 * @param gwIp gateway IP
+	 * @param maskIp subnet mask
+	 * @param iface router interface out which to send packets to reach the 
+	 *        destination or gateway
+	 * @return this batch
+	 */
+	public RouteBatch add(int dstIp, int gwIp, int maskIp, Iface iface)
+	{
+		this.operations.add(new Operation(Type.ADD, dstIp, maskIp, gwIp, 
+				iface));
+		return this;
+	}
+
+	/**
+	 * Add an equal-cost path to a route, adding the route if it does not
+	 * exist.
+	 * @param dstIp destination IP
+	 * @param gwIp gateway IP of the path
+	 * @param maskIp subnet mask
+	 * @param iface router interface of the path
+	 * @return this batch
+	 */
+	public RouteBatch addPath(int dstIp, int gwIp, int maskIp, Iface iface)
+	{
+		this.operations.add(new Operation(Type.ADD_PATH, dstIp, maskIp, gwIp,
+				iface));
+		return this;
+	}
+
+	/**
+	 * Remove an equal-cost path from a route, removing the route if it has
+	 * no other path.
+	 * @param dstIp destination IP of the route
+	 * @param maskIp subnet mask of the route
+	 * @param gwIp gateway IP of the path
+	 * @param iface router interface of the path
+	 * @return this batch
+	 */
+	public RouteBatch removePath(int dstIp, int maskIp, int gwIp, Iface iface)
+	{
+		this.operations.add(new Operation(Type.REMOVE_PATH, dstIp, maskIp, gwIp,
+				iface));
+		return this;
+	}
+
+	/**
+	 * Change the gateway and interface of a route, if it exists.
+	 * @param dstIP destination IP of the route to change
+	 * @param maskIp subnet mask of the route to change
+	 * @param gwIp new gateway IP
+	 * @param iface new router interface
+	 * @return this batch
+	 */
+	public RouteBatch change(int dstIp, int maskIp, int gwIp, Iface iface)
+	{
+		this.operations.add(new Operation(Type.CHANGE, dstIp, maskIp, gwIp,
+				iface));
+		return this;
+	}
+
+	/**
+	 * Remove a route, if it exists.
+	 * @param dstIP destination IP of the route to remove
+	 * @param maskIp subnet mask of the route to remove
+	 * @return this batch
+	 */
+	public RouteBatch withdraw(int dstIp, int maskIp)
+	{
+		this.operations.add(new Operation(Type.WITHDRAW, dstIp, maskIp, 0,
+				null));
+		return this;
+	}
+
+	/**
+	 * @return operations in the batch, in the order they are applied
+	 */
+	public List<Operation> getOperations()
+	{ return this.operations; }
+
+	/**
+	 * @return number of operations in the batch
+	 */
+	public int size()
+	{ return this.operations.size(); }
+
+	/**
+	 * @return true if the batch holds no operations
+	 */
+	public boolean isEmpty()
+	{ return this.operations.isEmpty(); }
+}
@@ -0,0 +1,57 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * A change that was actually made to a route table.
+ */
+public class RouteChange
+{
+	/** Kinds of change */
+	public enum Type
+	{
+		/** A route was added for a prefix that had none */
+		ADDED,
+		/** The gateway or interface of a prefix's route changed */
+		CHANGED,
+		/** A prefix's route was removed */
+		REMOVED
+	}
+
+	private Type type;
+
+	/** Route before the change; null if one was added */
+	private RouteEntry oldEntry;
+
+	/** Route after the change; null if one was removed */
+	private RouteEntry newEntry;
+
+	public RouteChange(Type type, RouteEntry oldEntry, RouteEntry newEntry)
+	{
+		this.type = type;
+		this.oldEntry = oldEntry;
+		this.newEntry = newEntry;
+	}
+
+	public Type getType()
+	{ return this.type; }
+
+	/**
+	 * @return route before the change; null if one was added
+	 */
+	public RouteEntry getOldEntry()
+	{ return this.oldEntry; }
+
+	/**
+	 * @return route after the change; null if one was removed
+	 */
+	public RouteEntry getNewEntry()
+	{ return this.newEntry; }
+
+	/**
+	 * @return the route that was added, changed or removed
+	 */
+	public RouteEntry getEntry()
+	{ return (null == this.newEntry) ? this.oldEntry : this.newEntry; }
+
+	public String toString()
+	{ return String.format("%s %s", this.type, this.getEntry()); }
+}
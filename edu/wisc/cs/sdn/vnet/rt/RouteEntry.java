@@ -4,39 +4,37 @@ import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * An entry in a route table.
+ * An entry in a route table. Route tables do not store entries as objects;
+ * an entry is a copy of a route made when the route is read, so it cannot
+ * be modified. The gateway and interface come from the route's shared
+ * {@link NextHop}.
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class RouteEntry 
 {
 	/** Destination IP address */
-	private int destinationAddress;
-	
-	/** Gateway IP address */
-	private int gatewayAddress;
+	private final int destinationAddress;
 	
 	/** Subnet mask */
-	private int maskAddress;
+	private final int maskAddress;
 	
-	/** Router interface out which packets should be sent to reach
-	 * the destination or gateway */
-	private Iface iface;
+	/** Gateway and router interface out which packets should be sent to
+	 * reach the destination */
+	private final NextHop nextHop;
 	
 	/**
 	 * Create a new route table entry.
 	 * @param destinationAddress destination IP address
-	 * @param gatewayAddress gateway IP address
 	 * @param maskAddress subnet mask
-	 * @param iface the router interface out which packets should 
-	 *        be sent to reach the destination or gateway
+	 * @param nextHop gateway and router interface out which packets should
+	 *        be sent to reach the destination
 	 */
-	public RouteEntry(int destinationAddress, int gatewayAddress, 
-			int maskAddress, Iface iface)
+	public RouteEntry(int destinationAddress, int maskAddress, 
+			NextHop nextHop)
 	{
 		this.destinationAddress = destinationAddress;
-		this.gatewayAddress = gatewayAddress;
 		this.maskAddress = maskAddress;
-		this.iface = iface;
+		this.nextHop = nextHop;
 	}
 	
 	/**
@@ -46,13 +44,11 @@ public class RouteEntry
 	{ return this.destinationAddress; }
 	
 	/**
-	 * @return gateway IP address
+	 * @return gateway IP address, of the first path if the entry has
+	 *         several equal-cost paths
 	 */
 	public int getGatewayAddress()
-	{ return this.gatewayAddress; }
-
-	public void setGatewayAddress(int gatewayAddress)
-	{ this.gatewayAddress = gatewayAddress; }
+	{ return this.nextHop.getGatewayAddress(); }
 	
 	/**
 	 * @return subnet mask 
@@ -65,17 +61,32 @@ public class RouteEntry
 	 *         reach the destination or gateway
 	 */
 	public Iface getInterface()
-	{ return this.iface; }
+	{ return this.nextHop.getInterface(); }
 
-	public void setInterface(Iface iface)
-	{ this.iface = iface; }
+	/**
+	 * @return next hop shared by every route with the same gateway and
+	 *         interface
+	 */
+	public NextHop getNextHop()
+	{ return this.nextHop; }
 	
+	/**
+	 * @return the entry in route table file format; one line per path if the
+	 *         entry has several equal-cost paths
+	 */
 	public String toString()
 	{
-		return String.format("%s \t%s \t%s \t%s",
-				IPv4.fromIPv4Address(this.destinationAddress),
-				IPv4.fromIPv4Address(this.gatewayAddress),
-				IPv4.fromIPv4Address(this.maskAddress),
-				this.iface.getName());
+		String result = "";
+		for (int i = 0; i < this.nextHop.getPathCount(); i++)
+		{
+			NextHop path = this.nextHop.getPath(i);
+			result += String.format("%s%s \t%s \t%s \t%s",
+					(i > 0) ? "\n" : "",
+					IPv4.fromIPv4Address(this.destinationAddress),
+					IPv4.fromIPv4Address(path.getGatewayAddress()),
+					IPv4.fromIPv4Address(this.maskAddress),
+					path.getInterface().getName());
+		}
+		return result;
 	}
 }
@@ -0,0 +1,62 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * A longest prefix match structure that a route table keeps alongside its
+ * prefix trie to answer lookups. The trie remains the authoritative copy
+ * of the routes; an index only needs to mirror insertions and removals.
+ *
+ * Like the trie, an index is modified through forks: once an index has been
+ * forked it is only read, so readers need no locks.
+ */
+public interface RouteIndex
+{
+	/**
+	 * Lookup the route entry that matches a given IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip);
+
+	/**
+	 * Lookup the route entries that match a burst of IP addresses.
+	 * @param ips IP addresses
+	 * @param count number of addresses to look up, from the start of ips
+	 * @param out receives the matching route entry for each address, null
+	 *        where none exists
+	 */
+	public void lookupBatch(int[] ips, int count, RouteEntry[] out);
+
+	/**
+	 * Create a modifiable copy of this index that shares as much state as
+	 * possible with it. This index must not be modified afterwards.
+	 * @return a copy of the index
+	 */
+	public RouteIndex fork();
+
+	/**
+	 * Add or replace the entry for a prefix.
+	 * @param entry route entry with a canonical destination and mask
+	 */
+	public void insert(RouteEntry entry);
+
+	/**
+	 * Remove the entry for a prefix.
+	 * @param prefix canonical prefix of the removed entry
+	 * @param length number of significant bits in the prefix
+	 * @param replacement entry with the longest shorter prefix covering the
+	 *        removed prefix, or null if there is none
+	 */
+	public void remove(int prefix, int length, RouteEntry replacement);
+
+	/**
+	 * Finish applying the insertions and removals made since the index was
+	 * forked; called once before the index is published to readers.
+	 * @param entries the route table's entries, including those changes
+	 */
+	public void publish(PrefixTrie entries);
+
+	/**
+	 * @return approximate number of bytes used by the index
+	 */
+	public long memoryUsage();
+}
@@ -1,32 +1,160 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.locks.ReentrantLock;
 
-import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
  * Route table for a router.
+ *
+ * Readers see an immutable snapshot of the table, which writers replace
+ * atomically. A writer forks the current snapshot, applies any number of
+ * changes to the fork through a {@link Transaction}, then publishes it;
+ * lookups never take a lock and never wait for a writer.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Largest number of equal-cost paths a route may have */
+	public static final int MAX_PATHS = 16;
+
+	/** Structures that can answer route lookups */
+	public enum Engine
+	{
+		/** Walk the prefix trie */
+		TRIE("trie"),
+		/** Flat DIR-24-8 arrays; at most two reads per lookup */
+		DIR_24_8("dir24"),
+		/** Bitmap-compressed multibit trie; compact, at most four reads per lookup */
+		POPTRIE("poptrie");
+
+		private String name;
+
+		private Engine(String name)
+		{ this.name = name; }
+
+		/**
+		 * @return the name used to select the engine on the command line
+		 */
+		public String getName()
+		{ return this.name; }
+
+		/**
+		 * @param name name used to select an engine on the command line
+		 * @return the engine with the given name, null if none exists
+		 */
+		public static Engine forName(String name)
+		{
+			for (Engine engine : Engine.values())
+			{
+				if (engine.name.equals(name))
+				{ return engine; }
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * An immutable version of the route table.
+	 */
+	private static class Snapshot
+	{
+		/** Entries in the route table, indexed by canonical prefix */
+		final PrefixTrie entries;
+
+		/** Engine used to answer lookups */
+		final Engine engine;
+
+		/** Index mirroring the trie; null if lookups walk the trie */
+		final RouteIndex index;
+
+		/** Number of versions published before this one */
+		final long generation;
+
+		Snapshot(PrefixTrie entries, Engine engine, RouteIndex index,
+				long generation)
+		{
+			this.entries = entries;
+			this.engine = engine;
+			this.index = index;
+			this.generation = generation;
+		}
+	}
+
+	/** Most recently published version of the route table */
+	private volatile Snapshot snapshot;
+
+	/** Held by the writer building the next version of the route table */
+	private final ReentrantLock writeLock;
 
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ 
+		this.snapshot = new Snapshot(new PrefixTrie(), Engine.TRIE, null, 0);
+		this.writeLock = new ReentrantLock();
+	}
+
+	/**
+	 * @return engine used to answer lookups
+	 */
+	public Engine getEngine()
+	{ return this.snapshot.engine; }
+
+	/**
+	 * @return a number that changes whenever an entry is inserted, removed
+	 *         or updated; results of earlier lookups may be reused as long
+	 *         as it stays the same
+	 */
+	public long getGeneration()
+	{ return this.snapshot.generation; }
+
+	/**
+	 * Select the engine used to answer lookups, building its index from the
+	 * entries currently in the route table.
+	 * @param engine engine to use
+	 * @return approximate number of bytes used by the engine's index
+	 */
+	public long setEngine(Engine engine)
+	{
+		RouteIndex index = null;
+		switch (engine)
+		{
+		case DIR_24_8:
+			index = new Dir248Table();
+			break;
+		case POPTRIE:
+			index = new Poptrie();
+			break;
+		default:
+			break;
+		}
+
+		this.writeLock.lock();
+		try
+		{
+			// Entries come out ancestors first, so each prefix is written
+			// before any longer prefix that overrides part of it
+			Snapshot base = this.snapshot;
+			if (index != null)
+			{
+				for (RouteEntry entry : base.entries.entries())
+				{ index.insert(entry); }
+				index.publish(base.entries);
+			}
+			this.snapshot = new Snapshot(base.entries, engine, index,
+					base.generation + 1);
+		}
+		finally
+		{ this.writeLock.unlock(); }
+		return (null == index) ? 0 : index.memoryUsage();
+	}
 
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,121 +163,411 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
+		Snapshot snapshot = this.snapshot;
+		if (snapshot.index != null)
+		{ return snapshot.index.lookup(ip); }
+		return snapshot.entries.lookup(ip); 
+	}
+
+	/**
+	 * Lookup the route entries that match a burst of IP addresses. Every
+	 * address is looked up in the same version of the route table.
+	 * @param ips IP addresses
+	 * @param count number of addresses to look up, from the start of ips
+	 * @param out receives the matching route entry for each address, null
+	 *        where none exists
+	 */
+	public void lookupBatch(int[] ips, int count, RouteEntry[] out)
+	{
+		Snapshot snapshot = this.snapshot;
+		if (snapshot.index != null)
+		{
+			snapshot.index.lookupBatch(ips, count, out);
+			return;
+		}
+		PrefixTrie entries = snapshot.entries;
+		for (int i = 0; i < count; i++)
+		{
+			// Bursts often hold several packets for the same destination
+			if (i > 0 && ips[i] == ips[i - 1])
+			{ out[i] = out[i - 1]; }
+			else
+			{ out[i] = entries.lookup(ips[i]); }
+		}
+	}
+
+	/**
+	 * Start a set of changes that will be published to readers together.
+	 * Waits until any other open transaction has been committed.
+	 * @return a transaction that must be committed
+	 */
+	public Transaction begin()
+	{
+		this.writeLock.lock();
+		return new Transaction(this.snapshot);
+	}
+
+	/**
+	 * A set of changes to the route table that readers see all at once.
+	 * Changes cannot be rolled back, so a transaction must always be
+	 * committed, even if the caller gives up part way through.
+	 */
+	public class Transaction
+	{
+		/** Next version of the entries, forked from the base snapshot */
+		private PrefixTrie entries;
+
+		/** Next version of the engine's index; null for the trie engine */
+		private RouteIndex index;
+
+		/** Engine used by the base snapshot */
+		private Engine engine;
+
+		/** Generation of the base snapshot */
+		private long generation;
+
+		/** True if the entries have been changed */
+		private boolean changed;
+
+		private Transaction(Snapshot base)
+		{
+			this.entries = base.entries.fork();
+			this.index = (null == base.index) ? null : base.index.fork();
+			this.engine = base.engine;
+			this.generation = base.generation;
+			this.changed = false;
+		}
+
+		/**
+		 * Add an entry to the route table. An existing entry for the same
+		 * destination and mask is replaced.
+		 * @param dstIp destination IP
+		 * @param gwIp gateway IP
+		 * @param maskIp subnet mask
+		 * @param iface router interface out which to send packets to reach
+		 *        the destination or gateway
+		 */
+		public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
 		{
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
+			// Store the prefix canonically, so lookups never need to re-mask
+			int length = PrefixTrie.prefixLength(maskIp);
+			maskIp = PrefixTrie.mask(length);
+			dstIp &= maskIp;
+
+			this.entries.put(dstIp, length, gwIp, iface);
+			if (this.index != null)
+			{ this.index.insert(this.entries.get(dstIp, length)); }
+			this.changed = true;
+		}
 
-			RouteEntry bestMatch = null;
-			for (RouteEntry entry : this.entries)
+		/**
+		 * Add an equal-cost path to an entry, adding the entry if the route
+		 * table has none for the destination and mask.
+		 * @param dstIp destination IP
+		 * @param gwIp gateway IP of the path
+		 * @param maskIp subnet mask
+		 * @param iface router interface of the path
+		 * @return true if the path was added; false if the entry already has
+		 *         it or already has {@link RouteTable#MAX_PATHS} paths
+		 */
+		public boolean addPath(int dstIp, int gwIp, int maskIp, Iface iface)
+		{
+			RouteEntry old = this.find(dstIp, maskIp);
+			if (null == old)
 			{
-				int maskedDst = ip & entry.getMaskAddress();
-				int entrySubnet = entry.getDestinationAddress() & entry.getMaskAddress();
-				if (maskedDst == entrySubnet) {
-					if ((null == bestMatch) || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-					{ bestMatch = entry; }
-				}
+				this.insert(dstIp, gwIp, maskIp, iface);
+				return true;
+			}
+
+			NextHop hop = old.getNextHop();
+			int count = hop.getPathCount();
+			if (count == MAX_PATHS)
+			{ return false; }
+			int[] gateways = new int[count + 1];
+			Iface[] ifaces = new Iface[count + 1];
+			for (int i = 0; i < count; i++)
+			{
+				NextHop path = hop.getPath(i);
+				if (path.getGatewayAddress() == gwIp 
+						&& path.getInterface() == iface)
+				{ return false; }
+				gateways[i] = path.getGatewayAddress();
+				ifaces[i] = path.getInterface();
+			}
+			gateways[count] = gwIp;
+			ifaces[count] = iface;
+			this.put(old, gateways, ifaces);
+			return true;
+		}
+
+		/**
+		 * Remove one of an entry's equal-cost paths, removing the entry if
+		 * it has no other path.
+		 * @param dstIp destination IP of the entry
+		 * @param maskIp subnet mask of the entry
+		 * @param gwIp gateway IP of the path
+		 * @param iface router interface of the path
+		 * @return true if the path was found and removed, otherwise false
+		 */
+		public boolean removePath(int dstIp, int maskIp, int gwIp, Iface iface)
+		{
+			RouteEntry old = this.find(dstIp, maskIp);
+			if (null == old)
+			{ return false; }
+
+			NextHop hop = old.getNextHop();
+			int count = hop.getPathCount();
+			int[] gateways = new int[count - 1];
+			Iface[] ifaces = new Iface[count - 1];
+			int kept = 0;
+			for (int i = 0; i < count; i++)
+			{
+				NextHop path = hop.getPath(i);
+				if (path.getGatewayAddress() == gwIp 
+						&& path.getInterface() == iface)
+				{ continue; }
+				if (kept == gateways.length)
+				{ return false; }
+				gateways[kept] = path.getGatewayAddress();
+				ifaces[kept] = path.getInterface();
+				kept++;
+			}
+			if (0 == kept)
+			{ return this.remove(dstIp, maskIp); }
+			this.put(old, gateways, ifaces);
+			return true;
+		}
+
+		private void put(RouteEntry old, int[] gateways, Iface[] ifaces)
+		{
+			int dstIp = old.getDestinationAddress();
+			int length = PrefixTrie.prefixLength(old.getMaskAddress());
+			this.entries.put(dstIp, length, gateways, ifaces);
+			if (this.index != null)
+			{ this.index.insert(this.entries.get(dstIp, length)); }
+			this.changed = true;
+		}
+
+		/**
+		 * Remove an entry from the route table.
+		 * @param dstIP destination IP of the entry to remove
+		 * @param maskIp subnet mask of the entry to remove
+		 * @return true if a matching entry was found and removed, otherwise 
+		 *         false
+		 */
+		public boolean remove(int dstIp, int maskIp)
+		{
+			int length = PrefixTrie.prefixLength(maskIp);
+			int prefix = dstIp & PrefixTrie.mask(length);
+			if (null == this.entries.remove(prefix, length)) 
+			{ return false; }
+			if (this.index != null)
+			{
+				RouteEntry replacement = (0 == length) ? null
+						: this.entries.lookup(prefix, length - 1);
+				this.index.remove(prefix, length, replacement);
 			}
+			this.changed = true;
+			return true;
+		}
+
+		/**
+		 * Update an entry in the route table. The entry is replaced rather
+		 * than modified, so readers of earlier versions are unaffected.
+		 * @param dstIP destination IP of the entry to update
+		 * @param maskIp subnet mask of the entry to update
+		 * @param gatewayAddress new gateway IP address for matching entry
+		 * @param iface new router interface for matching entry
+		 * @return true if a matching entry was found and updated, otherwise
+		 *         false
+		 */
+		public boolean update(int dstIp, int maskIp, int gwIp, Iface iface)
+		{
+			RouteEntry entry = this.find(dstIp, maskIp);
+			if (null == entry) 
+			{ return false; }
+			this.insert(entry.getDestinationAddress(), gwIp, 
+					entry.getMaskAddress(), iface);
+			return true;
+		}
 
-			return bestMatch;
+		/**
+		 * Send every route that uses a next hop to a different gateway or
+		 * interface. Routes share their next hop, so this takes the same time
+		 * however many routes use it.
+		 * @param gwIp gateway IP of the next hop
+		 * @param iface router interface of the next hop
+		 * @param newGwIp new gateway IP
+		 * @param newIface new router interface
+		 * @return true if any route used the next hop, otherwise false
+		 */
+		public boolean redirect(int gwIp, Iface iface, int newGwIp,
+				Iface newIface)
+		{
+			NextHopTable nextHops = this.entries.getNextHops();
+			int number = nextHops.find(gwIp, iface);
+			if (0 == number)
+			{ return false; }
+			nextHops.set(number, newGwIp, newIface, null);
+			this.changed = true;
+			return true;
+		}
 
-			/*****************************************************************/
+		/**
+		 * Record the MAC address of a next hop's gateway, so packets sent by
+		 * routes using the next hop need no ARP cache lookup.
+		 * @param gwIp gateway IP of the next hop
+		 * @param iface router interface of the next hop
+		 * @param mac MAC address of the gateway; null if no longer known
+		 * @return true if any route used the next hop, otherwise false
+		 */
+		public boolean setNextHopMac(int gwIp, Iface iface, MACAddress mac)
+		{
+			NextHopTable nextHops = this.entries.getNextHops();
+			int number = nextHops.find(gwIp, iface);
+			if (0 == number)
+			{ return false; }
+			NextHop hop = nextHops.get(number);
+			if ((null == mac) ? (null == hop.getMacAddress())
+					: mac.equals(hop.getMacAddress()))
+			{ return true; }
+			nextHops.set(number, gwIp, iface, mac);
+			this.changed = true;
+			return true;
+		}
+
+		/**
+		 * @return single-path next hops used by routes in the version of the
+		 *         route table being built
+		 */
+		public List<NextHop> getNextHops()
+		{ return this.entries.getNextHops().nextHops(); }
+
+		/**
+		 * Find an entry in the version of the route table being built.
+		 * @param dstIP destination IP of the entry to find
+		 * @param maskIp subnet mask of the entry to find
+		 * @return a matching entry if one was found, otherwise null
+		 */
+		public RouteEntry find(int dstIp, int maskIp)
+		{
+			int length = PrefixTrie.prefixLength(maskIp);
+			int prefix = dstIp & PrefixTrie.mask(length);
+			return this.entries.get(prefix, length);
+		}
+
+		/**
+		 * Publish the changes made in this transaction to readers and allow
+		 * the next transaction to begin.
+		 */
+		public void commit()
+		{
+			if (this.changed)
+			{ 
+				if (this.index != null)
+				{ this.index.publish(this.entries); }
+				RouteTable.this.snapshot = new Snapshot(this.entries, 
+						this.engine, this.index, this.generation + 1); 
+			}
+			RouteTable.this.writeLock.unlock();
 		}
 	}
 
 	/**
-	 * Populate the route table from a file.
+	 * Populate the route table from a file. Lines with the same destination
+	 * and mask become equal-cost paths of one entry.
 	 * @param filename name of the file containing the static route table
 	 * @param router the route table is associated with
 	 * @return true if route table was successfully loaded, otherwise false
 	 */
 	public boolean load(String filename, Router router)
 	{
-		// Open the file
-		BufferedReader reader;
+		// Map the file
+		TableFileScanner scanner;
 		try 
-		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
-		}
-		catch (FileNotFoundException e) 
+		{ scanner = TableFileScanner.open(filename); }
+		catch (IOException e) 
 		{
 			System.err.println(e.toString());
 			return false;
 		}
 
-		while (true)
-		{
-			// Read a route entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
+		// Publish all of the file's entries at once
+		Transaction txn = this.begin();
+		try
+		{ return this.load(scanner, router, txn); }
+		finally
+		{ txn.commit(); }
+	}
 
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
-
-			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-						"%s\\s+%s\\s+%s\\s+%s", 
-						ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 4)
+	private boolean load(TableFileScanner scanner, Router router, 
+			Transaction txn)
+	{
+		// Cache the last interface, since consecutive routes usually share one
+		String lastIfaceName = null;
+		Iface lastIface = null;
+
+		while (scanner.nextLine())
+		{
+			// Parse fields for route entry:
+			// destination gateway mask interface
+			long dstIp = scanner.readIPv4();
+			long gwIp = -1;
+			long maskIp = -1;
+			String ifaceName = null;
+			if (dstIp >= 0 && scanner.skipWhitespace())
+			{ gwIp = scanner.readIPv4(); }
+			if (gwIp >= 0 && scanner.skipWhitespace())
+			{ maskIp = scanner.readIPv4(); }
+			if (maskIp >= 0 && scanner.skipWhitespace())
+			{ ifaceName = scanner.readName(); }
+			if (null == ifaceName || !scanner.atLineEnd())
 			{
-				System.err.println("Invalid entry in routing table file");
-				try { reader.close(); } catch (IOException f) {};
+				System.err.println("Invalid entry in routing table file, line "
+						+ scanner.getLineNumber());
 				return false;
 			}
 
-			int dstIp = IPv4.toIPv4Address(matcher.group(1));
 			if (0 == dstIp)
 			{
 				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
+						+ "destination to valid IP, line " 
+						+ scanner.getLineNumber());
 				return false;
 			}
 
-			int gwIp = IPv4.toIPv4Address(matcher.group(2));
-
-			int maskIp = IPv4.toIPv4Address(matcher.group(3));
 			if (0 == maskIp)
 			{
 				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(3) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
+						+ "mask to valid IP, line " + scanner.getLineNumber());
 				return false;
 			}
 
-			String ifaceName = matcher.group(4).trim();
-			Iface iface = router.getInterface(ifaceName);
-			if (null == iface)
+			Iface iface = lastIface;
+			if (ifaceName != lastIfaceName)
 			{
-				System.err.println("Error loading route table, invalid interface "
-						+ matcher.group(4));
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				iface = router.getInterface(ifaceName);
+				if (null == iface)
+				{
+					System.err.println("Error loading route table, invalid interface "
+							+ ifaceName + ", line " + scanner.getLineNumber());
+					return false;
+				}
+				lastIfaceName = ifaceName;
+				lastIface = iface;
 			}
 
-			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface);
+			// Add an entry to the route table; further lines for the same
+			// destination and mask add equal-cost paths
+			txn.addPath((int)dstIp, (int)gwIp, (int)maskIp, iface);
 		}
 
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
 		return true;
 	}
 
 	/**
-	 * Add an entry to the route table.
+	 * Add an entry to the route table. An existing entry for the same
+	 * destination and mask is replaced.
 	 * @param dstIp destination IP
 	 * @param gwIp gateway IP
 	 * @param maskIp subnet mask
@@ -158,11 +576,11 @@ public class RouteTable
 	 */
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
 	{
-		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-		synchronized(this.entries)
-		{ 
-			this.entries.add(entry);
-		}
+		Transaction txn = this.begin();
+		try
+		{ txn.insert(dstIp, gwIp, maskIp, iface); }
+		finally
+		{ txn.commit(); }
 	}
 
 	/**
@@ -173,13 +591,11 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-		synchronized(this.entries)
-		{
-			RouteEntry entry = this.find(dstIp, maskIp);
-			if (null == entry) { return false; }
-			this.entries.remove(entry);
-		}
-		return true;
+		Transaction txn = this.begin();
+		try
+		{ return txn.remove(dstIp, maskIp); }
+		finally
+		{ txn.commit(); }
 	}
 
 	/**
@@ -192,47 +608,220 @@ public class RouteTable
 	 */
 	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface)
 	{
-		synchronized(this.entries)
+		Transaction txn = this.begin();
+		try
+		{ return txn.update(dstIp, maskIp, gwIp, iface); }
+		finally
+		{ txn.commit(); }
+	}
+
+	/**
+	 * Add an equal-cost path to an entry, adding the entry if the route
+	 * table has none for the destination and mask.
+	 * @param dstIp destination IP
+	 * @param gwIp gateway IP of the path
+	 * @param maskIp subnet mask
+	 * @param iface router interface of the path
+	 * @return true if the path was added, otherwise false
+	 */
+	public boolean addPath(int dstIp, int gwIp, int maskIp, Iface iface)
+	{
+		Transaction txn = this.begin();
+		try
+		{ return txn.addPath(dstIp, gwIp, maskIp, iface); }
+		finally
+		{ txn.commit(); }
+	}
+
+	/**
+	 * Remove one of an entry's equal-cost paths, removing the entry if it
+	 * has no other path.
+	 * @param dstIp destination IP of the entry
+	 * @param maskIp subnet mask of the entry
+	 * @param gwIp gateway IP of the path
+	 * @param iface router interface of the path
+	 * @return true if the path was found and removed, otherwise false
+	 */
+	public boolean removePath(int dstIp, int maskIp, int gwIp, Iface iface)
+	{
+		Transaction txn = this.begin();
+		try
+		{ return txn.removePath(dstIp, maskIp, gwIp, iface); }
+		finally
+		{ txn.commit(); }
+	}
+
+	/**
+	 * Send every route that uses a next hop to a different gateway or
+	 * interface, for example when a neighbor or interface fails.
+	 * @param gwIp gateway IP of the next hop
+	 * @param iface router interface of the next hop
+	 * @param newGwIp new gateway IP
+	 * @param newIface new router interface
+	 * @return true if any route used the next hop, otherwise false
+	 */
+	public boolean redirect(int gwIp, Iface iface, int newGwIp, Iface newIface)
+	{
+		Transaction txn = this.begin();
+		try
+		{ return txn.redirect(gwIp, iface, newGwIp, newIface); }
+		finally
+		{ txn.commit(); }
+	}
+
+	/**
+	 * Record the MAC address of a next hop's gateway.
+	 * @param gwIp gateway IP of the next hop
+	 * @param iface router interface of the next hop
+	 * @param mac MAC address of the gateway; null if no longer known
+	 * @return true if any route used the next hop, otherwise false
+	 */
+	public boolean setNextHopMac(int gwIp, Iface iface, MACAddress mac)
+	{
+		Transaction txn = this.begin();
+		try
+		{ return txn.setNextHopMac(gwIp, iface, mac); }
+		finally
+		{ txn.commit(); }
+	}
+
+	/**
+	 * Find the next hop for a gateway and interface. Next hops are found
+	 * through state the writer modifies in place, so this waits for any
+	 * open transaction; it is not for use on the forwarding path.
+	 * @return the next hop for a gateway and interface, null if no route
+	 *         uses it
+	 */
+	public NextHop getNextHop(int gwIp, Iface iface)
+	{
+		this.writeLock.lock();
+		try
 		{
-			RouteEntry entry = this.find(dstIp, maskIp);
-			if (null == entry) { return false; }
-			entry.setGatewayAddress(gwIp);
-			entry.setInterface(iface);
+			NextHopTable nextHops = this.snapshot.entries.getNextHops();
+			return nextHops.get(nextHops.find(gwIp, iface));
 		}
-		return true;
+		finally
+		{ this.writeLock.unlock(); }
 	}
 
 	/**
-	 * Find an entry in the route table.
-	 * @param dstIP destination IP of the entry to find
-	 * @param maskIp subnet mask of the entry to find
-	 * @return a matching entry if one was found, otherwise null
+	 * List the next hops in use. Like {@link #getNextHop(int, Iface)}, this
+	 * waits for any open transaction.
+	 * @return single-path next hops used by routes in the route table, with
+	 *         their packet counters
 	 */
-	private RouteEntry find(int dstIp, int maskIp)
+	public List<NextHop> getNextHops()
 	{
-		synchronized(this.entries)
+		this.writeLock.lock();
+		try
+		{ return this.snapshot.entries.getNextHops().nextHops(); }
+		finally
+		{ this.writeLock.unlock(); }
+	}
+
+	/**
+	 * Apply a batch of route additions, changes and withdrawals, and publish
+	 * the result to readers at once. Operations that would leave a route as
+	 * it is (adding an identical route or a path the route already has,
+	 * removing a path the route does not have, changing or withdrawing a
+	 * missing route) are skipped; if every operation is skipped nothing is
+	 * published and the table's generation is unchanged.
+	 * @param batch operations to apply, in order
+	 * @return the changes actually made, in the order they were made
+	 */
+	public List<RouteChange> applyBatch(RouteBatch batch)
+	{
+		List<RouteChange> changes = new ArrayList<RouteChange>();
+		Transaction txn = this.begin();
+		try
 		{
-			for (RouteEntry entry : this.entries)
+			for (RouteBatch.Operation op : batch.getOperations())
 			{
-				if ((entry.getDestinationAddress() == dstIp)
-					&& (entry.getMaskAddress() == maskIp)) 
-				{ return entry; }
+				int dstIp = op.getDestinationAddress();
+				int maskIp = op.getMaskAddress();
+				RouteEntry old = txn.find(dstIp, maskIp);
+				switch (op.getType())
+				{
+				case ADD:
+				case CHANGE:
+					if (null == old && RouteBatch.Type.CHANGE == op.getType())
+					{ break; }
+					if (old != null && !old.getNextHop().isMultipath()
+							&& old.getGatewayAddress() == op.getGatewayAddress()
+							&& old.getInterface() == op.getInterface())
+					{ break; }
+					txn.insert(dstIp, op.getGatewayAddress(), maskIp, 
+							op.getInterface());
+					changes.add(new RouteChange((null == old) 
+								? RouteChange.Type.ADDED 
+								: RouteChange.Type.CHANGED,
+							old, txn.find(dstIp, maskIp)));
+					break;
+				case ADD_PATH:
+					if (txn.addPath(dstIp, op.getGatewayAddress(), maskIp,
+							op.getInterface()))
+					{
+						changes.add(new RouteChange((null == old) 
+									? RouteChange.Type.ADDED 
+									: RouteChange.Type.CHANGED,
+								old, txn.find(dstIp, maskIp)));
+					}
+					break;
+				case REMOVE_PATH:
+					if (txn.removePath(dstIp, maskIp, op.getGatewayAddress(),
+							op.getInterface()))
+					{
+						RouteEntry entry = txn.find(dstIp, maskIp);
+						changes.add(new RouteChange((null == entry)
+									? RouteChange.Type.REMOVED
+									: RouteChange.Type.CHANGED,
+								old, entry));
+					}
+					break;
+				case WITHDRAW:
+					if (txn.remove(dstIp, maskIp))
+					{ 
+						changes.add(new RouteChange(RouteChange.Type.REMOVED, 
+								old, null)); 
+					}
+					break;
+				}
 			}
 		}
-		return null;
+		finally
+		{ txn.commit(); }
+		return changes;
+	}
+
+	/**
+	 * Find an entry in the route table.
+	 * @param dstIP destination IP of the entry to find
+	 * @param maskIp subnet mask of the entry to find
+	 * @return a matching entry if one was found, otherwise null
+	 */
+	public RouteEntry find(int dstIp, int maskIp)
+	{
+		int length = PrefixTrie.prefixLength(maskIp);
+		int prefix = dstIp & PrefixTrie.mask(length);
+		return this.snapshot.entries.get(prefix, length);
 	}
 
+	/**
+	 * @return entries in the route table, each prefix before any longer
+	 *         prefix it covers
+	 */
+	public List<RouteEntry> getEntries()
+	{ return this.snapshot.entries.entries(); }
+
 	public String toString()
 	{
-		synchronized(this.entries)
-		{ 
-			if (0 == this.entries.size())
-			{ return " WARNING: route table empty"; }
+		PrefixTrie entries = this.snapshot.entries;
+		if (0 == entries.size())
+		{ return " WARNING: route table empty"; }
 
-			String result = "Destination\tGateway\t\tMask\t\tIface\n";
-			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
-		}
+		String result = "Destination\tGateway\t\tMask\t\tIface\n";
+		for (RouteEntry entry : entries.entries())
+		{ result += entry.toString()+"\n"; }
+		return result;
 	}
 }
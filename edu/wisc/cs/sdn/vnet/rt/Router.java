@@ -3,12 +3,22 @@ package edu.wisc.cs.sdn.vnet.rt;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PacketLog;
+import edu.wisc.cs.sdn.vnet.PacketLog.Category;
+import edu.wisc.cs.sdn.vnet.PacketLog.Level;
 
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
 import net.floodlightcontroller.packet.RIPv2;
 import net.floodlightcontroller.packet.RIPv2Entry;
+import net.floodlightcontroller.packet.UDP;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -16,24 +26,99 @@ import java.util.*;
  */
 public class Router extends Device
 {	
+	/** Offsets of the fields read and written when forwarding raw frames */
+	private static final int ETHER_TYPE = 12;
+	private static final int ETHER_HEADER_SIZE = 14;
+	private static final int IP_HEADER_SIZE = 20;
+	private static final int IP_TTL = 8;
+	private static final int IP_DESTINATION = 16;
+
+	/** Version bits of the first byte of an IPv4 header */
+	private static final int IP_VERSION = 0x40;
+
+	/** Multicast address RIP messages are sent to */
+	private static final int RIP_ADDRESS = IPv4.toIPv4Address("224.0.0.9");
+
+	/** Broadcast MAC address RIP messages are sent to */
+	private static final byte[] BROADCAST_MAC =
+			MACAddress.valueOf("ff:ff:ff:ff:ff:ff").toBytes();
+
+	/** Time (in milliseconds) between unsolicited RIP responses */
+	public static final long RIP_UPDATE_INTERVAL = 10 * 1000;
+
+	/** Time (in milliseconds) a learned route is kept without being heard */
+	public static final long RIP_ROUTE_TIMEOUT = 30 * 1000;
+
+	/** Time (in milliseconds) a timed out route is advertised as unreachable
+	 *  before it is flushed */
+	public static final long RIP_GARBAGE_TIMEOUT = 120 * 1000;
+
+	/** Default bounds (in milliseconds) of the random delay before a
+	 *  triggered RIP update, over which further changes are collected */
+	public static final long RIP_TRIGGER_MIN_DELAY = 1000;
+	public static final long RIP_TRIGGER_MAX_DELAY = 5000;
+
+	/** Length (in milliseconds) of a tick of the RIP timing wheel */
+	private static final long RIP_TICK = 100;
+
+	/** Number of slots in the RIP timing wheel */
+	private static final int RIP_WHEEL_SLOTS = 512;
+
 	/** Routing table for the router */
 	private RouteTable routeTable;
 
 	/** ARP cache for the router */
 	private ArpCache arpCache;
-	//distance vector table 
-	/*
-	protected short addressFamily;
-    protected short routeTag;
-	protected int address;
-	protected int subnetMask;
-	protected int nextHopAddress;
-	protected int metric;
-	*/
-	// private List<RIPv2Entry> dvTable;
-	//key is a list of IP address and mask; 
-	//value is a list of object: [int metrics, long initTime, boolean self, int nexthop]
-	private HashMap< List<Integer>, ArrayList<Object> > dvTable;
+
+	/** Packets waiting for next hops' MAC addresses to be resolved */
+	private ArpResolver arpResolver;
+
+	/** Recent forwarding decisions, keyed by destination IP */
+	private DestinationCache destCache;
+
+	/** Worker threads frames are spread over; null if frames are handled by
+	 *  the thread that reads them */
+	private ForwardingPipeline pipeline;
+
+	/** RIP distance vector: best known metric to each subnet and the
+	 *  neighbor it was learned from */
+	private DistanceVectorTable dvTable;
+
+	/** Routes advertised out each interface, keyed by interface name */
+	private Map<String,RipAdvertisement> ripViews;
+
+	/** Equal-cost paths of learned routes other than the one recorded in
+	 *  the distance vector table, keyed by {@link DistanceVectorTable#key};
+	 *  guarded by the distance vector table's lock */
+	private Map<Long,List<PathTimer>> ripPaths;
+
+	/** Route expiry and periodic update timers; guarded by the distance
+	 *  vector table's lock */
+	private TimingWheel ripTimers;
+
+	/** Thread advancing the RIP timers; null if RIP is not running */
+	private Thread ripThread;
+
+	/** Sends the whole distance vector every update interval */
+	private UpdateTimer updateTimer;
+
+	/** Sends the routes changed since the last update */
+	private TriggerTimer triggerTimer;
+
+	/** Bounds (in milliseconds) of the delay before a triggered update */
+	private long triggerMinDelay;
+	private long triggerMaxDelay;
+
+	/** Picks the delay before each triggered update */
+	private Random ripRandom;
+
+	/** File the routing table is saved to on shutdown; null if not saved */
+	private String fibSnapshotFile;
+
+	/** Size and modification time of the route table file, recorded in
+	 *  snapshots so a snapshot of an older version is not restored */
+	private long routeTableSize;
+	private long routeTableModified;
 
 	/**
 	 * Creates a router for a specific host.
@@ -44,6 +129,36 @@ public class Router extends Device
 		super(host,logfile);
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache();
+		this.arpResolver = new ArpResolver(this, this.arpCache);
+		this.destCache = new DestinationCache(DestinationCache.DEFAULT_SIZE);
+		this.dvTable = new DistanceVectorTable();
+		this.ripViews = new HashMap<String,RipAdvertisement>();
+		this.ripPaths = new HashMap<Long,List<PathTimer>>();
+		this.fibSnapshotFile = null;
+		this.routeTableSize = 0;
+		this.routeTableModified = 0;
+		this.pipeline = null;
+		this.ripTimers = new TimingWheel(RIP_WHEEL_SLOTS, RIP_TICK,
+				System.currentTimeMillis());
+		this.ripThread = null;
+		this.updateTimer = new UpdateTimer();
+		this.triggerTimer = new TriggerTimer();
+		this.triggerMinDelay = RIP_TRIGGER_MIN_DELAY;
+		this.triggerMaxDelay = RIP_TRIGGER_MAX_DELAY;
+		this.ripRandom = new Random();
+	}
+
+	/**
+	 * Set how long route changes are collected before a triggered update
+	 * is sent. The delay is picked at random between the bounds each time,
+	 * so neighbors changed by the same event do not all update at once.
+	 * @param minDelay least delay (in milliseconds)
+	 * @param maxDelay greatest delay (in milliseconds)
+	 */
+	public void setTriggeredUpdateDelay(long minDelay, long maxDelay)
+	{
+		this.triggerMinDelay = minDelay;
+		this.triggerMaxDelay = Math.max(minDelay, maxDelay);
 	}
 
 	/**
@@ -52,6 +167,33 @@ public class Router extends Device
 	public RouteTable getRouteTable()
 	{ return this.routeTable; }
 
+	/**
+	 * @return cache of recent forwarding decisions
+	 */
+	public DestinationCache getDestinationCache()
+	{ return this.destCache; }
+
+	/**
+	 * @return packets waiting for next hops' MAC addresses to be resolved
+	 */
+	public ArpResolver getArpResolver()
+	{ return this.arpResolver; }
+
+	/**
+	 * Handle received frames on worker threads, rather than on the thread
+	 * that reads them. Frames are spread over the workers by a hash of their
+	 * IP flow, so each flow's frames are still handled in order.
+	 * @param workerCount number of worker threads
+	 */
+	public void startPipeline(int workerCount)
+	{
+		this.pipeline = new ForwardingPipeline(this, workerCount,
+				ForwardingPipeline.DEFAULT_QUEUE_SIZE);
+		this.pipeline.start();
+		System.out.println(String.format("Forwarding on %d worker threads",
+				workerCount));
+	}
+
 	/**
 	 * Load a new routing table from a file.
 	 * @param routeTableFile the name of the file containing the routing table
@@ -71,14 +213,456 @@ public class Router extends Device
 		System.out.println("-------------------------------------------------");
 	}
 
+	/**
+	 * Load the routing table from a binary snapshot written by
+	 * {@link #saveFibSnapshot(String)}, if it was saved from the current
+	 * version of the route table file.
+	 * @param snapshotFile the name of the snapshot file
+	 * @return true if the snapshot was loaded
+	 */
+	public boolean loadFibSnapshot(String snapshotFile)
+	{
+		long start = System.nanoTime();
+		int count = FibSnapshot.read(this.routeTable, snapshotFile, this,
+				this.routeTableSize, this.routeTableModified);
+		long elapsed = System.nanoTime() - start;
+		if (count < 0)
+		{ return false; }
+
+		System.out.println(String.format(
+				"Loaded %d routes from FIB snapshot %s in %.1f ms",
+				count, snapshotFile, elapsed / 1e6));
+		return true;
+	}
+
+	/**
+	 * Save the routing table to a binary snapshot.
+	 * @param snapshotFile the name of the snapshot file
+	 * @return true if the snapshot was written
+	 */
+	public boolean saveFibSnapshot(String snapshotFile)
+	{
+		try
+		{
+			int count = FibSnapshot.write(this.routeTable, snapshotFile,
+					this.routeTableSize, this.routeTableModified);
+			System.out.println(String.format(
+					"Saved %d routes to FIB snapshot %s", count, snapshotFile));
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error saving FIB snapshot " + snapshotFile
+					+ ": " + e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Save the routing table to a snapshot on shutdown, tagged with the
+	 * current version of the route table file, which is read now.
+	 * @param snapshotFile file to save the routing table to on shutdown;
+	 *        null if the routing table should not be saved
+	 * @param routeTableFile the route table file the routes come from
+	 */
+	public void setFibSnapshotFile(String snapshotFile, String routeTableFile)
+	{
+		File file = new File(routeTableFile);
+		this.fibSnapshotFile = snapshotFile;
+		this.routeTableSize = file.length();
+		this.routeTableModified = file.lastModified();
+	}
+
+	/**
+	 * Report forwarding statistics, save the routing table if requested, and
+	 * shut down the router.
+	 */
+	public void destroy()
+	{
+		if (this.ripThread != null)
+		{
+			this.ripThread.interrupt();
+			try
+			{ this.ripThread.join(); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+		}
+		if (this.pipeline != null)
+		{
+			this.pipeline.stop();
+			System.out.print(this.pipeline.toString());
+		}
+		this.arpResolver.shutdown();
+		PacketLog.flush();
+		System.out.println(this.destCache.toString());
+		System.out.println(this.arpResolver.toString());
+		System.out.print(this.getNextHopCounters());
+		if (this.fibSnapshotFile != null)
+		{ this.saveFibSnapshot(this.fibSnapshotFile); }
+		super.destroy();
+	}
+
+	/**
+	 * @return number of packets forwarded through each next hop, one line per
+	 *         next hop
+	 */
+	public String getNextHopCounters()
+	{
+		String result = "";
+		for (NextHop hop : this.routeTable.getNextHops())
+		{
+			result += String.format("Next hop %s: %d packets\n", 
+					hop.toString(), hop.getPacketCount());
+		}
+		return result;
+	}
+
+	/**
+	 * Select the engine used for route lookups, building it from the routes
+	 * currently in the routing table.
+	 * @param engine the lookup engine to use
+	 */
+	public void setLookupEngine(RouteTable.Engine engine)
+	{
+		long start = System.nanoTime();
+		long bytes = this.routeTable.setEngine(engine);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format(
+				"Lookup engine %s: built in %.1f ms, index uses %.1f MB",
+				engine.getName(), elapsed / 1e6, bytes / (1024.0 * 1024.0)));
+	}
+
 	public void initializeRouteTable(){
-		for (Iface iface : this.interfaces.values()){
-			this.routeTable.insert(iface.getIpAddress(), 0, iface.getSubnetMask(), iface);
+		RouteTable.Transaction txn = this.routeTable.begin();
+		try
+		{
+			for (Iface iface : this.interfaces.values()){
+				txn.insert(iface.getIpAddress(), 0, iface.getSubnetMask(), iface);
+
+				// Directly connected subnets are never replaced by learned routes
+				synchronized (this.dvTable)
+				{
+					RipAdvertisement view = new RipAdvertisement(iface,
+							DistanceVectorTable.DEFAULT_CAPACITY);
+					this.dvTable.addView(view);
+					this.ripViews.put(iface.getName(), view);
+					this.dvTable.put(iface.getIpAddress() & iface.getSubnetMask(),
+							iface.getSubnetMask(), 0, 0, iface, true);
+				}
+			}
+		}
+		finally
+		{ txn.commit(); }
+
+		// Ask the neighbors for their routes, then advertise ours every
+		// update interval
+		for (Iface iface : this.interfaces.values())
+		{ this.sendRipRequest(iface); }
+		this.startRip();
+	}
+
+	/** Fires when a learned route times out, and again when it is flushed */
+	private class RouteTimer extends TimingWheel.Timer
+	{
+		private final int address;
+		private final int mask;
+
+		private RouteTimer(int address, int mask)
+		{
+			this.address = address;
+			this.mask = mask;
+		}
+
+		public void expired(long now)
+		{ Router.this.routeExpired(this, now); }
+	}
+
+	/** Fires when an equal-cost path of a learned route times out */
+	private class PathTimer extends TimingWheel.Timer
+	{
+		private final int address;
+		private final int mask;
+		private final int gateway;
+		private final Iface iface;
+
+		private PathTimer(int address, int mask, int gateway, Iface iface)
+		{
+			this.address = address;
+			this.mask = mask;
+			this.gateway = gateway;
+			this.iface = iface;
+		}
+
+		public void expired(long now)
+		{ Router.this.pathExpired(this, now); }
+	}
+
+	/** Fires every update interval to advertise the routes */
+	private class UpdateTimer extends TimingWheel.Timer
+	{
+		public void expired(long now)
+		{
+			// Every route goes out, so pending changes need no triggered
+			// update of their own
+			Router.this.dvTable.takeChanges();
+			Router.this.ripTimers.cancel(Router.this.triggerTimer);
+			for (RipAdvertisement view : Router.this.ripViews.values())
+			{ Router.this.sendRipResponse(view, RIP_ADDRESS, BROADCAST_MAC, null); }
+			Router.this.ripTimers.schedule(this, now + RIP_UPDATE_INTERVAL);
+		}
+	}
+
+	/** Fires at the end of the delay before a triggered update, to
+	 *  advertise the routes changed during it */
+	private class TriggerTimer extends TimingWheel.Timer
+	{
+		public void expired(long now)
+		{
+			int[] changed = Router.this.dvTable.takeChanges();
+			if (0 == changed.length)
+			{ return; }
+			for (RipAdvertisement view : Router.this.ripViews.values())
+			{ 
+				Router.this.sendRipResponse(view, RIP_ADDRESS, BROADCAST_MAC,
+						changed); 
+			}
+			PacketLog.log(Level.INFO, Category.RIP, 
+					"Triggered RIP update with %d routes", changed.length);
 		}
-		//add direct neighbors to the dvTable 
-		//flood the entries 
-		//RIPv2Entry(int address, int subnetMask, int metric)
-		
+	}
+
+	/**
+	 * Schedule a triggered update if routes have changed and none is
+	 * already waiting; changes made before it fires go out with it. No
+	 * update is scheduled if the periodic update is due first. Must be
+	 * called with the distance vector table's lock held.
+	 * @param now current time (in milliseconds)
+	 */
+	private void triggerUpdate(long now)
+	{
+		if (!this.dvTable.hasChanges() || this.triggerTimer.isScheduled()
+				|| null == this.ripThread)
+		{ return; }
+		long delay = this.triggerMinDelay;
+		if (this.triggerMaxDelay > this.triggerMinDelay)
+		{
+			delay += (long)(this.ripRandom.nextDouble()
+					* (this.triggerMaxDelay - this.triggerMinDelay));
+		}
+		if (this.updateTimer.isScheduled()
+				&& this.updateTimer.getDeadline() <= now + delay)
+		{ return; }
+		this.ripTimers.schedule(this.triggerTimer, now + delay);
+	}
+
+	/**
+	 * Start the thread advancing the RIP timers, with the first periodic
+	 * update due immediately.
+	 */
+	private void startRip()
+	{
+		synchronized (this.dvTable)
+		{
+			this.ripTimers.schedule(this.updateTimer, 
+					System.currentTimeMillis());
+		}
+
+		this.ripThread = new Thread("rip-timer")
+		{
+			public void run()
+			{
+				while (true)
+				{
+					try
+					{ Thread.sleep(RIP_TICK); }
+					catch (InterruptedException e)
+					{ return; }
+
+					// Only the timers due this tick are looked at, however
+					// many routes there are
+					synchronized (Router.this.dvTable)
+					{ Router.this.ripTimers.advance(System.currentTimeMillis()); }
+				}
+			}
+		};
+		this.ripThread.setDaemon(true);
+		this.ripThread.start();
+	}
+
+	/**
+	 * Time out a learned route that has not been heard, or flush one that
+	 * has been advertised as unreachable long enough. Must be called with
+	 * the distance vector table's lock held.
+	 */
+	private void routeExpired(RouteTimer timer, long now)
+	{
+		int index = this.dvTable.find(timer.address, timer.mask);
+		if (index < 0)
+		{ return; }
+
+		if (this.dvTable.getMetric(index) >= DistanceVectorTable.INFINITY)
+		{
+			this.dvTable.remove(index);
+			return;
+		}
+
+		// The route is still reachable through any other equal-cost path
+		RouteBatch batch = new RouteBatch();
+		if (this.promotePath(index, batch))
+		{
+			this.routeTable.applyBatch(batch);
+			return;
+		}
+
+		// Keep advertising the route as unreachable until it is flushed, so
+		// neighbors learn of its loss
+		this.dvTable.setMetric(index, DistanceVectorTable.INFINITY);
+		this.ripTimers.schedule(timer, now + RIP_GARBAGE_TIMEOUT);
+		this.routeTable.applyBatch(
+				new RouteBatch().withdraw(timer.address, timer.mask));
+		this.triggerUpdate(now);
+		PacketLog.log(Level.INFO, Category.RIP, "RIP route %s/%d timed out",
+				IPv4.fromIPv4Address(timer.address),
+				PrefixTrie.prefixLength(timer.mask));
+	}
+
+	/**
+	 * Remove an equal-cost path that has not been heard from its route.
+	 * Must be called with the distance vector table's lock held.
+	 */
+	private void pathExpired(PathTimer path, long now)
+	{
+		this.forgetPath(path);
+		this.routeTable.applyBatch(new RouteBatch().removePath(path.address,
+				path.mask, path.gateway, path.iface));
+		PacketLog.log(Level.INFO, Category.RIP, 
+				"RIP path to %s via %s timed out",
+				IPv4.fromIPv4Address(path.address),
+				IPv4.fromIPv4Address(path.gateway));
+	}
+
+	/**
+	 * Replace the path of a learned route recorded in the distance vector
+	 * table with one of its other equal-cost paths, at the same metric, and
+	 * remove the replaced path from the route.
+	 * @param index position of the route in the distance vector table
+	 * @param batch batch to add the route table change to
+	 * @return true if the route had another path, otherwise false
+	 */
+	private boolean promotePath(int index, RouteBatch batch)
+	{
+		int address = this.dvTable.getAddress(index);
+		int mask = this.dvTable.getMask(index);
+		List<PathTimer> paths = this.ripPaths.get(
+				DistanceVectorTable.key(address, mask));
+		if (null == paths)
+		{ return false; }
+
+		PathTimer path = paths.get(0);
+		batch.removePath(address, mask, this.dvTable.getNextHop(index),
+				this.dvTable.getInterface(index));
+		this.dvTable.update(index, this.dvTable.getMetric(index), path.gateway,
+				path.iface);
+		this.ripTimers.schedule(this.dvTable.getTimer(index), 
+				path.getDeadline());
+		this.ripTimers.cancel(path);
+		this.forgetPath(path);
+		return true;
+	}
+
+	/**
+	 * Stop tracking an equal-cost path of a learned route.
+	 */
+	private void forgetPath(PathTimer path)
+	{
+		long key = DistanceVectorTable.key(path.address, path.mask);
+		List<PathTimer> paths = this.ripPaths.get(key);
+		paths.remove(path);
+		if (paths.isEmpty())
+		{ this.ripPaths.remove(key); }
+	}
+
+	/**
+	 * Stop tracking every equal-cost path of a learned route other than
+	 * the one recorded in the distance vector table, such as when a better
+	 * path replaces them all.
+	 */
+	private void forgetPaths(int address, int mask)
+	{
+		List<PathTimer> paths = this.ripPaths.remove(
+				DistanceVectorTable.key(address, mask));
+		if (null == paths)
+		{ return; }
+		for (PathTimer path : paths)
+		{ this.ripTimers.cancel(path); }
+	}
+
+	/**
+	 * Ask the neighbors on an interface for their whole routing tables.
+	 * @param iface interface out which to send the request
+	 */
+	private void sendRipRequest(Iface iface)
+	{
+		RIPv2 rip = new RIPv2();
+		rip.setCommand(RIPv2.COMMAND_REQUEST);
+		RIPv2Entry entry = new RIPv2Entry(0, 0, DistanceVectorTable.INFINITY);
+		entry.setAddressFamily((short)0);
+		rip.addEntry(entry);
+		this.sendRip(rip, iface, RIP_ADDRESS, BROADCAST_MAC);
+	}
+
+	/**
+	 * Advertise routes out an interface, in as many messages as they take.
+	 * Must be called with the distance vector table's lock held.
+	 * @param view routes advertised out the interface
+	 * @param dstIp IP address to send the routes to
+	 * @param dstMac MAC address to send the routes to
+	 * @param positions positions of the routes to send; null to send all
+	 */
+	private void sendRipResponse(RipAdvertisement view, int dstIp,
+			byte[] dstMac, int[] positions)
+	{
+		Iface iface = view.getInterface();
+		if (null == positions && RIP_ADDRESS == dstIp)
+		{
+			// Sent from the frames kept encoded as routes change; sending
+			// copies them, so they can change again while queued
+			for (int k = 0; k < view.getFrameCount(); k++)
+			{ this.sendFrame(view.getFrame(k), 0, view.getFrameLength(k), iface); }
+			return;
+		}
+
+		int count = (null == positions) ? view.size() : positions.length;
+		for (int from = 0; from < count; from += RipAdvertisement.MAX_ENTRIES)
+		{
+			byte[] frame = view.encodeFrame(positions, from, 
+					Math.min(RipAdvertisement.MAX_ENTRIES, count - from), 
+					dstIp, dstMac);
+			this.sendFrame(frame, 0, frame.length, iface);
+		}
+	}
+
+	private void sendRip(RIPv2 rip, Iface iface, int dstIp, byte[] dstMac)
+	{
+		UDP udp = new UDP();
+		udp.setSourcePort(UDP.RIP_PORT);
+		udp.setDestinationPort(UDP.RIP_PORT);
+		udp.setPayload(rip);
+
+		IPv4 ip = new IPv4();
+		ip.setTtl((byte)64);
+		ip.setProtocol(IPv4.PROTOCOL_UDP);
+		ip.setSourceAddress(iface.getIpAddress());
+		ip.setDestinationAddress(dstIp);
+		ip.setPayload(udp);
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setSourceMACAddress(iface.getMacAddress().toBytes());
+		ether.setDestinationMACAddress(dstMac);
+		ether.setPayload(ip);
+		this.sendPacket(ether, iface);
 	}
 
 	/**
@@ -94,6 +678,25 @@ public class Router extends Device
 			System.exit(1);
 		}
 
+		// Give next hops their gateways' MAC addresses up front
+		RouteTable.Transaction txn = this.routeTable.begin();
+		try
+		{
+			for (NextHop hop : txn.getNextHops())
+			{
+				if (0 == hop.getGatewayAddress())
+				{ continue; }
+				ArpEntry arpEntry = this.arpCache.lookup(hop.getGatewayAddress());
+				if (arpEntry != null)
+				{
+					txn.setNextHopMac(hop.getGatewayAddress(), hop.getInterface(),
+							arpEntry.getMac());
+				}
+			}
+		}
+		finally
+		{ txn.commit(); }
+
 		System.out.println("Loaded static ARP cache");
 		System.out.println("----------------------------------");
 		System.out.print(this.arpCache.toString());
@@ -107,8 +710,8 @@ public class Router extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		PacketLog.logPacket(Level.DEBUG, Category.PACKET,
+				"*** -> Received packet: ", etherPacket);
 
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
@@ -118,12 +721,58 @@ public class Router extends Device
 		case Ethernet.TYPE_IPv4:
 			this.handleIpPacket(etherPacket, inIface);
 			break;
+		case Ethernet.TYPE_ARP:
+			this.handleArpPacket(etherPacket, inIface);
+			break;
 		// Ignore all other packet types, for now
 		}
 
 		/********************************************************************/
 	}
 	
+	private void handleArpPacket(Ethernet etherPacket, Iface inIface)
+	{
+		ARP arpPacket = (ARP)etherPacket.getPayload();
+		if (arpPacket.getProtocolType() != ARP.PROTO_TYPE_IP)
+		{ return; }
+		int senderIp = IPv4.toIPv4Address(arpPacket.getSenderProtocolAddress());
+		int targetIp = IPv4.toIPv4Address(arpPacket.getTargetProtocolAddress());
+
+		// Learn the sender's address from replies and from requests for this
+		// router, and send any packets waiting for it
+		if (senderIp != 0 && (ARP.OP_REPLY == arpPacket.getOpCode()
+				|| targetIp == inIface.getIpAddress()))
+		{
+			MACAddress senderMac = MACAddress.valueOf(
+					arpPacket.getSenderHardwareAddress());
+			this.arpResolver.resolved(senderIp, senderMac);
+			this.routeTable.setNextHopMac(senderIp, inIface, senderMac);
+		}
+
+		// Answer requests for the interface's address
+		if (ARP.OP_REQUEST != arpPacket.getOpCode() 
+				|| targetIp != inIface.getIpAddress())
+		{ return; }
+
+		ARP reply = new ARP();
+		reply.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		reply.setProtocolType(ARP.PROTO_TYPE_IP);
+		reply.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		reply.setProtocolAddressLength((byte)4);
+		reply.setOpCode(ARP.OP_REPLY);
+		reply.setSenderHardwareAddress(inIface.getMacAddress().toBytes());
+		reply.setSenderProtocolAddress(inIface.getIpAddress());
+		reply.setTargetHardwareAddress(arpPacket.getSenderHardwareAddress());
+		reply.setTargetProtocolAddress(arpPacket.getSenderProtocolAddress());
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_ARP);
+		ether.setSourceMACAddress(inIface.getMacAddress().toBytes());
+		ether.setDestinationMACAddress(etherPacket.getSourceMACAddress());
+		ether.setPayload(reply);
+		this.sendPacket(ether, inIface);
+	}
+
 	private void handleIpPacket(Ethernet etherPacket, Iface inIface)
 	{
 		// Make sure it's an IP packet
@@ -132,63 +781,181 @@ public class Router extends Device
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
-		System.out.println("Handle IP packet");
-
-		// Verify checksum
-		short origCksum = ipPacket.getChecksum();
-		ipPacket.resetChecksum();
-		byte[] serialized = ipPacket.serialize();
-		ipPacket.deserialize(serialized, 0, serialized.length);
-		short calcCksum = ipPacket.getChecksum();
-		if (origCksum != calcCksum)
-		{ return; }
+		PacketLog.log(Level.DEBUG, Category.FORWARD, "Handle IP packet");
 
-		// Check TTL
-		ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
-		if (0 == ipPacket.getTtl())
+		// Verify checksum over the header only
+		if (!ipPacket.isChecksumValid())
 		{ return; }
 
-		// Reset checksum now that TTL is decremented
-		ipPacket.resetChecksum();
-
-		// Check if packet is destined for one of router's interfaces
+		// Check if the packet is an RIPv2 packet, before the TTL, since
+		// RIP packets are not forwarded
+		boolean forRouter = (RIP_ADDRESS == ipPacket.getDestinationAddress());
 		for (Iface iface : this.interfaces.values())
 		{
 			if (ipPacket.getDestinationAddress() == iface.getIpAddress())
-			{ return; }
+			{ forRouter = true; }
 		}
-
-		// Check if the packet is an RIPv2 packet
-		if (ipPacket.getProtocol() == IPv4.PROTOCOL_UDP && ipPacket.getDestinationAddress() == IPv4.toIPv4Address("224.0.0.9")){
-			handleRIPPacket((RIPv2)ipPacket.getPayload(), ipPacket.getSourceAddress());
+		if (forRouter && ipPacket.getProtocol() == IPv4.PROTOCOL_UDP
+				&& ((UDP)ipPacket.getPayload()).getDestinationPort() == UDP.RIP_PORT){
+			handleRIPPacket((RIPv2)ipPacket.getPayload().getPayload(), 
+					ipPacket.getSourceAddress(), 
+					etherPacket.getSourceMACAddress(), inIface);
 			return; // Do not forward
 		}
 
+		// Check if packet is destined for one of router's interfaces
+		if (forRouter)
+		{ return; }
+
+		// Check TTL, updating the checksum for the new TTL rather than
+		// recomputing it
+		ipPacket.decrementTtl();
+		if (0 == ipPacket.getTtl())
+		{ return; }
+
 		// Do route lookup and forward
 		this.forwardIpPacket(etherPacket, inIface);
 	}
 
-	private void handleRIPPacket(RIPv2 rip, int sourceAddr){
-		for (RIPv2Entry e: rip.getEntries()){
-			ArrayList<Integer> ls = new ArrayList<Integer>();
-			ls.add(e.getAddress()); 
-			ls.add(e.getSubnetMask());
+	private void handleRIPPacket(RIPv2 rip, int sourceAddr, byte[] sourceMac,
+			Iface inIface){
+		if (RIPv2.COMMAND_REQUEST == rip.getCommand())
+		{
+			synchronized (this.dvTable)
+			{
+				RipAdvertisement view = this.ripViews.get(inIface.getName());
+				if (view != null)
+				{ this.sendRipResponse(view, sourceAddr, sourceMac, null); }
+			}
+			return;
+		}
+		if (rip.getCommand() != RIPv2.COMMAND_RESPONSE)
+		{ return; }
+
+		// Collect improved routes, so the route table is updated once per
+		// response rather than once per entry
+		RouteBatch batch = new RouteBatch();
 
-			ArrayList<Object> v = new ArrayList<Object>();
-			v.add(e.getMetric()+1);
-			v.add(System.currentTimeMillis());
-			v.add(false);
-			v.add(sourceAddr);
+		// Responses from different neighbors may be handled by different
+		// workers
+		synchronized (this.dvTable)
+		{
+			long now = System.currentTimeMillis();
+			for (RIPv2Entry e: rip.getEntries()){
+				int address = e.getAddress() & e.getSubnetMask();
+				int metric = Math.min(e.getMetric() + 1, 
+						DistanceVectorTable.INFINITY);
+				int index = this.dvTable.find(address, e.getSubnetMask());
+				if (index < 0){
+					if (metric >= DistanceVectorTable.INFINITY)
+					{ continue; }
+					index = this.dvTable.put(address, e.getSubnetMask(), 
+							metric, sourceAddr, inIface, false);
+					RouteTimer timer = new RouteTimer(address, e.getSubnetMask());
+					this.dvTable.setTimer(index, timer);
+					this.ripTimers.schedule(timer, now + RIP_ROUTE_TIMEOUT);
+					batch.add(address, sourceAddr, e.getSubnetMask(), inIface);
+					continue;
+				}
+
+				// Directly connected subnets are never replaced
+				if (this.dvTable.isLocal(index))
+				{ continue; }
 
-			if(dvTable.containsKey(ls)){
-				if((int)dvTable.get(ls).get(0) > (int)v.get(0)){
-					dvTable.put(ls, v);
+				int oldMetric = this.dvTable.getMetric(index);
+				TimingWheel.Timer timer = this.dvTable.getTimer(index);
+				if (this.dvTable.getNextHop(index) == sourceAddr){
+					// A route that got worse keeps its metric while it has
+					// another equal-cost path
+					if (metric > oldMetric 
+							&& this.promotePath(index, batch))
+					{ continue; }
+
+					// The neighbor the route was learned from is believed
+					// whether the route got better or worse
+					if (metric < DistanceVectorTable.INFINITY){
+						this.dvTable.update(index, metric, sourceAddr, inIface);
+						this.ripTimers.schedule(timer, now + RIP_ROUTE_TIMEOUT);
+						if (metric != oldMetric)
+						{
+							this.forgetPaths(address, e.getSubnetMask());
+							batch.add(address, sourceAddr, e.getSubnetMask(), inIface);
+						}
+					}
+					else if (oldMetric < DistanceVectorTable.INFINITY){
+						this.dvTable.update(index, metric, sourceAddr, inIface);
+						this.ripTimers.schedule(timer, now + RIP_GARBAGE_TIMEOUT);
+						batch.withdraw(address, e.getSubnetMask());
+					}
+					continue;
+				}
+
+				List<PathTimer> paths = this.ripPaths.get(
+						DistanceVectorTable.key(address, e.getSubnetMask()));
+				PathTimer path = null;
+				if (paths != null)
+				{
+					for (PathTimer p : paths)
+					{
+						if (p.gateway == sourceAddr && p.iface == inIface)
+						{ path = p; }
+					}
+				}
+
+				if(oldMetric > metric){
+					// A better path replaces every path of the route
+					this.forgetPaths(address, e.getSubnetMask());
+					this.dvTable.update(index, metric, sourceAddr, inIface);
+					this.ripTimers.schedule(timer, now + RIP_ROUTE_TIMEOUT);
+					batch.add(address, sourceAddr, e.getSubnetMask(), inIface);
+				}
+				// Another neighbor at the same cost is an equal-cost path,
+				// which times out on its own
+				else if(oldMetric == metric 
+						&& metric < DistanceVectorTable.INFINITY){
+					if (null == path)
+					{
+						path = new PathTimer(address, e.getSubnetMask(), 
+								sourceAddr, inIface);
+						if (null == paths)
+						{
+							paths = new ArrayList<PathTimer>(2);
+							this.ripPaths.put(DistanceVectorTable.key(address, 
+									e.getSubnetMask()), paths);
+						}
+						paths.add(path);
+						batch.addPath(address, sourceAddr, e.getSubnetMask(), inIface);
+					}
+					this.ripTimers.schedule(path, now + RIP_ROUTE_TIMEOUT);
+				}
+				// An equal-cost path that got worse is no longer used
+				else if (path != null){
+					this.ripTimers.cancel(path);
+					this.forgetPath(path);
+					batch.removePath(address, e.getSubnetMask(), sourceAddr, 
+							inIface);
 				}
 			}
-			else{
-				dvTable.put(ls, v);
+
+			// Apply under the same lock, so batches reach the route table
+			// in the order the distance vector table saw them
+			List<RouteChange> changes = this.routeTable.applyBatch(batch);
+			if (!changes.isEmpty())
+			{
+				PacketLog.log(Level.INFO, Category.RIP,
+						"RIP response from %s changed %d routes",
+						IPv4.fromIPv4Address(sourceAddr), changes.size());
+
+				// Routes through the neighbor may have given it a new next
+				// hop, which needs its MAC address
+				ArpEntry arpEntry = this.arpCache.lookup(sourceAddr);
+				if (arpEntry != null)
+				{
+					this.routeTable.setNextHopMac(sourceAddr, inIface,
+							arpEntry.getMac());
+				}
 			}
-			
+			this.triggerUpdate(now);
 		}
 	}
 
@@ -197,38 +964,300 @@ public class Router extends Device
 		// Make sure it's an IP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
 		{ return; }
-		System.out.println("Forward IP packet");
+		PacketLog.log(Level.DEBUG, Category.FORWARD, "Forward IP packet");
 
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 		int dstAddr = ipPacket.getDestinationAddress();
 
+		NextHop hop;
+		Adjacency adjacency;
+		DestinationCache.Entry dest = this.findDestination(dstAddr);
+		if (dest != null)
+		{
+			hop = dest.getRoute().getNextHop();
+			adjacency = dest.getAdjacency();
+		}
+		else
+		{
+			// Either there is no route or the next hop's MAC address is
+			// unknown
+			RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+			if (null == bestMatch)
+			{ return; }
+			hop = bestMatch.getNextHop();
+			adjacency = null;
+		}
+
+		// Spread flows over a multipath route's paths by their 5-tuple, so a
+		// flow always takes the same path
+		if (hop.isMultipath())
+		{
+			hop = hop.select(FlowHash.hash(ipPacket));
+			adjacency = this.resolveAdjacency(hop, dstAddr);
+		}
+
+		// Make sure we don't sent a packet back out the interface it came in
+		Iface outIface = hop.getInterface();
+		if (outIface == inIface)
+		{ return; }
+
+		if (null == adjacency)
+		{
+			// Hold the packet until the next hop answers an ARP request
+			etherPacket.setSourceMACAddress(outIface.getMacAddress());
+			int nextHop = hop.getGatewayAddress();
+			if (0 == nextHop)
+			{ nextHop = dstAddr; }
+			this.arpResolver.enqueue(nextHop, outIface, etherPacket, inIface,
+					hop);
+			return;
+		}
+
+		// Set source and destination MAC addresses in Ethernet header
+		adjacency.rewrite(etherPacket);
+
+		hop.countPacket();
+		this.sendPacket(etherPacket, outIface);
+	}
+
+	/**
+	 * Tell the sender of a packet that its destination could not be reached.
+	 * No error is sent about an ICMP error, so errors cannot feed on each
+	 * other.
+	 * @param etherPacket the packet that could not be delivered
+	 * @param inIface the interface on which the packet was received
+	 */
+	void sendHostUnreachable(Ethernet etherPacket, Iface inIface)
+	{
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		if (IPv4.PROTOCOL_ICMP == ipPacket.getProtocol())
+		{
+			byte type = ((ICMP)ipPacket.getPayload()).getIcmpType();
+			if (type != ICMP.TYPE_ECHO_REQUEST && type != ICMP.TYPE_ECHO_REPLY)
+			{ return; }
+		}
+
+		// The error carries the packet's IP header and the first 8 bytes of
+		// its payload, after 4 unused bytes
+		byte[] original = ipPacket.serialize();
+		int quoted = Math.min(original.length, 
+				ipPacket.getHeaderLength() * 4 + 8);
+		byte[] data = new byte[4 + quoted];
+		System.arraycopy(original, 0, data, 4, quoted);
+
+		ICMP icmp = new ICMP();
+		icmp.setIcmpType(ICMP.TYPE_DESTINATION_UNREACHABLE);
+		icmp.setIcmpCode(ICMP.CODE_HOST_UNREACHABLE);
+		icmp.setPayload(new Data(data));
+
+		IPv4 ip = new IPv4();
+		ip.setTtl((byte)64);
+		ip.setProtocol(IPv4.PROTOCOL_ICMP);
+		ip.setSourceAddress(inIface.getIpAddress());
+		ip.setDestinationAddress(ipPacket.getSourceAddress());
+		ip.setPayload(icmp);
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setPayload(ip);
+		this.forwardIpPacket(ether, null);
+	}
+
+	/**
+	 * Handle a received frame. With worker threads the frame is queued for
+	 * the worker its flow hashes to; otherwise transit packets are forwarded
+	 * in place by {@link #forwardFrame}.
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length,
+			Iface inIface)
+	{
+		if (null == this.pipeline)
+		{ return this.forwardFrame(frame, offset, length, inIface); }
+		this.pipeline.dispatch(frame, offset, length, inIface,
+				flowHash(frame, offset, length));
+		return true;
+	}
+
+	/**
+	 * Handle a frame on a worker thread: forward it in place if it is a
+	 * transit packet, otherwise parse it and handle the packet.
+	 */
+	void processFrame(byte[] frame, int offset, int length, Iface inIface)
+	{
+		if (this.forwardFrame(frame, offset, length, inIface))
+		{ return; }
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(frame, offset, length);
+		this.handlePacket(etherPacket, inIface);
+	}
+
+	/**
+	 * Hash the IP flow a frame belongs to, reading only the headers.
+	 * @return hash of the frame's 5-tuple; 0 for frames that are not IPv4
+	 */
+	private static int flowHash(byte[] frame, int offset, int length)
+	{
+		if (length < ETHER_HEADER_SIZE + IP_HEADER_SIZE
+				|| getShort(frame, offset + ETHER_TYPE) != Ethernet.TYPE_IPv4)
+		{ return 0; }
+		return FlowHash.hash(frame, offset + ETHER_HEADER_SIZE, 
+				length - ETHER_HEADER_SIZE);
+	}
+
+	/**
+	 * Forward an IPv4 transit packet in place, reading and rewriting only
+	 * the header fields forwarding needs: the destination is looked up, the
+	 * TTL decremented, the checksum patched and the MAC addresses rewritten,
+	 * then the same buffer is sent. Frames that need more than that (other
+	 * protocols, packets for the router, RIP and multicast, expiring TTLs,
+	 * destinations without a route or next hops without a known MAC
+	 * address) are left for {@link #handlePacket}.
+	 * @return true if the frame was handled, false if it should be parsed
+	 */
+	private boolean forwardFrame(byte[] frame, int offset, int length,
+			Iface inIface)
+	{
+		int ip = offset + ETHER_HEADER_SIZE;
+		if (length < ETHER_HEADER_SIZE + IP_HEADER_SIZE || null == inIface
+				|| getShort(frame, offset + ETHER_TYPE) != Ethernet.TYPE_IPv4
+				|| (frame[ip] & 0xF0) != IP_VERSION
+				|| (frame[ip + IP_TTL] & 0xFF) <= 1)
+		{ return false; }
+
+		int dstAddr = getInt(frame, ip + IP_DESTINATION);
+		if (dstAddr >>> 28 == 0xE)
+		{ return false; }
+		for (Iface iface : this.interfaces.values())
+		{
+			if (dstAddr == iface.getIpAddress())
+			{ return false; }
+		}
+
+		// Drop corrupt packets, as the object path does
+		if (!IPv4.isChecksumValid(frame, ip, length - ETHER_HEADER_SIZE))
+		{ return true; }
+
+		DestinationCache.Entry dest = this.findDestination(dstAddr);
+		if (null == dest)
+		{ return false; }
+		NextHop hop = dest.getRoute().getNextHop();
+		Adjacency adjacency = dest.getAdjacency();
+		if (hop.isMultipath())
+		{
+			hop = hop.select(FlowHash.hash(frame, ip, 
+					length - ETHER_HEADER_SIZE));
+			adjacency = this.resolveAdjacency(hop, dstAddr);
+			if (null == adjacency)
+			{ return false; }
+		}
+		Iface outIface = adjacency.getInterface();
+		if (outIface == inIface)
+		{ return true; }
+
+		// Decrement the TTL and patch the checksum to match
+		IPv4.decrementTtl(frame, ip);
+
+		adjacency.rewrite(frame, offset);
+
+		hop.countPacket();
+		this.sendFrame(frame, offset, length, outIface);
+		return true;
+	}
+
+	private static int getShort(byte[] buf, int pos)
+	{ return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF); }
+
+	private static int getInt(byte[] buf, int pos)
+	{ return (getShort(buf, pos) << 16) | getShort(buf, pos + 2); }
+
+	/**
+	 * Find the forwarding decision for a destination, using the cached
+	 * decision unless the route table or ARP cache has changed since it was
+	 * made.
+	 * @param dstAddr destination IP address
+	 * @return the forwarding decision; null if there is no route or the next
+	 *         hop's MAC address is unknown
+	 */
+	private DestinationCache.Entry findDestination(int dstAddr)
+	{
+		// Each worker thread caches its own decisions
+		DestinationCache destCache = this.destCache;
+		Thread thread = Thread.currentThread();
+		if (thread instanceof ForwardingPipeline.Worker)
+		{ destCache = ((ForwardingPipeline.Worker)thread).getDestinationCache(); }
+
+		long routeGeneration = this.routeTable.getGeneration();
+		long arpGeneration = this.arpCache.getGeneration();
+		DestinationCache.Entry dest = destCache.lookup(dstAddr,
+				routeGeneration, arpGeneration);
+		if (null == dest)
+		{
+			dest = this.resolve(dstAddr, routeGeneration, arpGeneration);
+			if (dest != null)
+			{ destCache.insert(dest); }
+		}
+		return dest;
+	}
+
+	/**
+	 * Find the route and the neighbor to send packets to for a destination.
+	 * @param dstAddr destination IP address
+	 * @param routeGeneration route table generation read before the lookup
+	 * @param arpGeneration ARP cache generation read before the lookup
+	 * @return the forwarding decision; null if there is no route or the next
+	 *         hop's MAC address is unknown. A route with several paths is
+	 *         left for each packet to pick a path, with no neighbor.
+	 */
+	private DestinationCache.Entry resolve(int dstAddr, long routeGeneration,
+			long arpGeneration)
+	{
 		// Find matching route table entry 
 		RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
 
 		// If no entry matched, do nothing
 		if (null == bestMatch)
-		{ return; }
+		{ return null; }
 
-		// Make sure we don't sent a packet back out the interface it came in
-		Iface outIface = bestMatch.getInterface();
-		if (outIface == inIface)
-		{ return; }
+		NextHop hop = bestMatch.getNextHop();
+		if (hop.isMultipath())
+		{
+			return new DestinationCache.Entry(dstAddr, routeGeneration,
+					arpGeneration, bestMatch, null);
+		}
 
-		// Set source MAC address in Ethernet header
-		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+		Adjacency adjacency = this.resolveAdjacency(hop, dstAddr);
+		if (null == adjacency)
+		{ return null; }
+		return new DestinationCache.Entry(dstAddr, routeGeneration, 
+				arpGeneration, bestMatch, adjacency);
+	}
+
+	/**
+	 * Find the neighbor to send a packet to through a single-path next hop.
+	 * @param hop the next hop
+	 * @param dstAddr destination IP address of the packet
+	 * @return the gateway, or the destination if it is directly connected,
+	 *         with the Ethernet header for packets sent to it; null if its
+	 *         MAC address is unknown
+	 */
+	private Adjacency resolveAdjacency(NextHop hop, int dstAddr)
+	{
+		// Use the gateway's adjacency if the next hop already has one
+		if (hop.getGatewayAddress() != 0 && hop.getAdjacency() != null)
+		{ return hop.getAdjacency(); }
 
 		// If no gateway, then nextHop is IP destination
-		int nextHop = bestMatch.getGatewayAddress();
+		int nextHop = hop.getGatewayAddress();
 		if (0 == nextHop)
 		{ nextHop = dstAddr; }
 
-		// Set destination MAC address in Ethernet header
+		// Next hops are given their gateways' MAC addresses by the control
+		// path, since changing one publishes a new route table; until then
+		// the ARP cache is used
 		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
 		if (null == arpEntry)
-		{ return; }
-		etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
-
-		this.sendPacket(etherPacket, outIface);
+		{ return null; }
+		return new Adjacency(hop.getInterface(), arpEntry.getMac());
 	}
 }
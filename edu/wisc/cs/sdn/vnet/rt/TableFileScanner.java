@@ -0,0 +1,284 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A line-oriented scanner for route table and ARP cache files. The file is
+ * memory-mapped and fields are parsed directly from its bytes, so scanning
+ * a line allocates nothing unless the caller asks for text.
+ */
+public class TableFileScanner
+{
+	/** Number of distinct names remembered by {@link #readName()} */
+	private static final int NAME_CACHE_SIZE = 16;
+
+	/** Contents of the file */
+	private MappedByteBuffer buf;
+
+	/** End of the file */
+	private int limit;
+
+	/** Start of the next line */
+	private int next;
+
+	/** Bounds of the current line, excluding the line terminator */
+	private int lineStart;
+	private int lineEnd;
+
+	/** Number of the current line, starting from 1 */
+	private int lineNumber;
+
+	/** Current position within the line */
+	private int pos;
+
+	/** Start of the field most recently read */
+	private int fieldStart;
+
+	/** Names recently returned by readName, with their bytes */
+	private byte[][] nameBytes;
+	private String[] names;
+	private int nameCount;
+
+	private TableFileScanner(MappedByteBuffer buf)
+	{
+		this.buf = buf;
+		this.limit = buf.limit();
+		this.next = 0;
+		this.lineStart = 0;
+		this.lineEnd = 0;
+		this.lineNumber = 0;
+		this.pos = 0;
+		this.fieldStart = 0;
+		this.nameBytes = new byte[NAME_CACHE_SIZE][];
+		this.names = new String[NAME_CACHE_SIZE];
+		this.nameCount = 0;
+	}
+
+	/**
+	 * Map a file for scanning.
+	 * @param filename name of the file
+	 * @return a scanner positioned before the first line
+	 * @throws IOException if the file cannot be opened or is too large
+	 */
+	public static TableFileScanner open(String filename) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+			{ throw new IOException("File too large: " + filename); }
+			return new TableFileScanner(channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally
+		{ file.close(); }
+	}
+
+	/**
+	 * Advance to the next line. Lines end with \n, \r or \r\n.
+	 * @return false if there are no more lines
+	 */
+	public boolean nextLine()
+	{
+		if (this.next >= this.limit)
+		{ return false; }
+
+		int end = this.next;
+		while (end < this.limit)
+		{
+			byte b = this.buf.get(end);
+			if ('\n' == b || '\r' == b)
+			{ break; }
+			end++;
+		}
+
+		this.lineStart = this.next;
+		this.lineEnd = end;
+		this.pos = this.lineStart;
+		this.fieldStart = this.lineStart;
+		this.lineNumber++;
+
+		if (end < this.limit)
+		{
+			// Consume the terminator, treating \r\n as one
+			byte b = this.buf.get(end++);
+			if ('\r' == b && end < this.limit && '\n' == this.buf.get(end))
+			{ end++; }
+		}
+		this.next = end;
+		return true;
+	}
+
+	/**
+	 * @return number of the current line, starting from 1
+	 */
+	public int getLineNumber()
+	{ return this.lineNumber; }
+
+	/**
+	 * @return true if the whole line has been read
+	 */
+	public boolean atLineEnd()
+	{ return this.pos == this.lineEnd; }
+
+	/**
+	 * Skip one or more spaces or tabs.
+	 * @return false if the line does not continue with whitespace
+	 */
+	public boolean skipWhitespace()
+	{
+		int start = this.pos;
+		while (this.pos < this.lineEnd)
+		{
+			byte b = this.buf.get(this.pos);
+			if (b != ' ' && b != '\t' && b != 0x0B && b != '\f')
+			{ break; }
+			this.pos++;
+		}
+		return this.pos > start;
+	}
+
+	/**
+	 * Read an IPv4 address written as four dot-separated decimal numbers.
+	 * @return the address as an unsigned 32-bit value, or -1 if the line
+	 *         does not continue with an address or a number exceeds 255
+	 */
+	public long readIPv4()
+	{
+		this.fieldStart = this.pos;
+		long addr = 0;
+		for (int i = 0; i < 4; i++)
+		{
+			if (i > 0)
+			{
+				if (this.pos >= this.lineEnd || this.buf.get(this.pos) != '.')
+				{ return -1; }
+				this.pos++;
+			}
+
+			int start = this.pos;
+			int octet = 0;
+			while (this.pos < this.lineEnd)
+			{
+				int digit = this.buf.get(this.pos) - '0';
+				if (digit < 0 || digit > 9)
+				{ break; }
+				octet = octet * 10 + digit;
+				if (octet > 255)
+				{ return -1; }
+				this.pos++;
+			}
+			if (this.pos == start)
+			{ return -1; }
+			addr = (addr << 8) | octet;
+		}
+		return addr;
+	}
+
+	/**
+	 * Read a MAC address written as six colon-separated pairs of hex digits.
+	 * @return the address in the low 48 bits, or -1 if the line does not
+	 *         continue with an address
+	 */
+	public long readMAC()
+	{
+		this.fieldStart = this.pos;
+		long addr = 0;
+		for (int i = 0; i < 6; i++)
+		{
+			if (i > 0)
+			{
+				if (this.pos >= this.lineEnd || this.buf.get(this.pos) != ':')
+				{ return -1; }
+				this.pos++;
+			}
+			if (this.pos + 2 > this.lineEnd)
+			{ return -1; }
+			int high = hexValue(this.buf.get(this.pos));
+			int low = hexValue(this.buf.get(this.pos + 1));
+			if (high < 0 || low < 0)
+			{ return -1; }
+			addr = (addr << 8) | (high << 4) | low;
+			this.pos += 2;
+		}
+		return addr;
+	}
+
+	private static int hexValue(byte b)
+	{
+		if (b >= '0' && b <= '9')
+		{ return b - '0'; }
+		if (b >= 'a' && b <= 'f')
+		{ return b - 'a' + 10; }
+		if (b >= 'A' && b <= 'F')
+		{ return b - 'A' + 10; }
+		return -1;
+	}
+
+	/**
+	 * Read a name made of letters and digits. Names are cached, so reading
+	 * the same name again does not create a new string.
+	 * @return the name, or null if the line does not continue with one
+	 */
+	public String readName()
+	{
+		this.fieldStart = this.pos;
+		while (this.pos < this.lineEnd)
+		{
+			byte b = this.buf.get(this.pos);
+			if (!((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+					|| (b >= '0' && b <= '9')))
+			{ break; }
+			this.pos++;
+		}
+		int length = this.pos - this.fieldStart;
+		if (0 == length)
+		{ return null; }
+
+		for (int i = 0; i < this.nameCount; i++)
+		{
+			byte[] bytes = this.nameBytes[i];
+			if (bytes.length != length)
+			{ continue; }
+			int j = 0;
+			while (j < length && bytes[j] == this.buf.get(this.fieldStart + j))
+			{ j++; }
+			if (j == length)
+			{ return this.names[i]; }
+		}
+
+		byte[] bytes = new byte[length];
+		for (int j = 0; j < length; j++)
+		{ bytes[j] = this.buf.get(this.fieldStart + j); }
+		String name = new String(bytes);
+		int slot = (this.nameCount < NAME_CACHE_SIZE) ? this.nameCount++
+				: (this.lineNumber % NAME_CACHE_SIZE);
+		this.nameBytes[slot] = bytes;
+		this.names[slot] = name;
+		return name;
+	}
+
+	/**
+	 * @return text of the field most recently read, up to the next
+	 *         whitespace; for use in error messages
+	 */
+	public String getField()
+	{
+		int end = this.fieldStart;
+		while (end < this.lineEnd)
+		{
+			byte b = this.buf.get(end);
+			if (' ' == b || '\t' == b)
+			{ break; }
+			end++;
+		}
+		byte[] bytes = new byte[end - this.fieldStart];
+		for (int j = 0; j < bytes.length; j++)
+		{ bytes[j] = this.buf.get(this.fieldStart + j); }
+		return new String(bytes);
+	}
+}
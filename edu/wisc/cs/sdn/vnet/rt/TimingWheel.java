@@ -0,0 +1,194 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * A hashed timing wheel: timers are hashed by deadline into a ring of slots,
+ * each covering one tick, and each tick only the timers in one slot are
+ * looked at. Scheduling, rescheduling and cancelling a timer take constant
+ * time whatever the number of timers, and a timer object is reused for
+ * every schedule, so timers can be kept per route.
+ *
+ * Timers fire no earlier than their deadline and at most one tick after it.
+ * The wheel is not thread-safe; callers synchronize on it. Timers may
+ * schedule and cancel any timer, including themselves, when they fire.
+ */
+public class TimingWheel
+{
+	/** Something to do at a given time */
+	public static abstract class Timer
+	{
+		/** Neighbors in the slot or due list the timer is in; null if the
+		 *  timer is not scheduled */
+		private Timer next;
+		private Timer prev;
+
+		/** Time (in milliseconds) the timer fires */
+		private long deadline;
+
+		/** Tick in which the timer fires */
+		private long tick;
+
+		/**
+		 * Called when the timer fires; the timer is no longer scheduled.
+		 * @param now current time (in milliseconds)
+		 */
+		public abstract void expired(long now);
+
+		/**
+		 * @return true if the timer is waiting to fire
+		 */
+		public boolean isScheduled()
+		{ return this.next != null; }
+
+		/**
+		 * @return time (in milliseconds) the timer fires, or last fired
+		 */
+		public long getDeadline()
+		{ return this.deadline; }
+
+		private void unlink()
+		{
+			this.prev.next = this.next;
+			this.next.prev = this.prev;
+			this.next = null;
+			this.prev = null;
+		}
+
+		private void linkBefore(Timer head)
+		{
+			this.next = head;
+			this.prev = head.prev;
+			head.prev.next = this;
+			head.prev = this;
+		}
+	}
+
+	/** Head of a circular list of timers; never fires */
+	private static class Head extends Timer
+	{
+		private Head()
+		{
+			super.next = this;
+			super.prev = this;
+		}
+
+		public void expired(long now)
+		{ }
+
+		private boolean isEmpty()
+		{ return super.next == this; }
+	}
+
+	/** Timers waiting to fire, by tick modulo the number of slots */
+	private final Head[] slots;
+
+	/** Timers taken from their slot to fire in the current tick */
+	private final Head due;
+
+	/** Length (in milliseconds) of a tick */
+	private final long tickLength;
+
+	/** Last tick whose timers have fired */
+	private long currentTick;
+
+	/** Number of timers scheduled */
+	private int size;
+
+	/**
+	 * Create an empty wheel.
+	 * @param slotCount number of slots; rounded up to a power of two
+	 * @param tickLength length (in milliseconds) of a tick
+	 * @param now current time (in milliseconds)
+	 */
+	public TimingWheel(int slotCount, long tickLength, long now)
+	{
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(slotCount, 2) - 1);
+		this.slots = new Head[1 << bits];
+		for (int i = 0; i < this.slots.length; i++)
+		{ this.slots[i] = new Head(); }
+		this.due = new Head();
+		this.tickLength = tickLength;
+		this.currentTick = now / tickLength;
+		this.size = 0;
+	}
+
+	/**
+	 * @return length (in milliseconds) of a tick
+	 */
+	public long getTickLength()
+	{ return this.tickLength; }
+
+	/**
+	 * @return number of timers scheduled
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * Schedule a timer, replacing its deadline if it is already scheduled.
+	 * @param timer the timer
+	 * @param deadline time (in milliseconds) the timer fires
+	 */
+	public void schedule(Timer timer, long deadline)
+	{
+		this.cancel(timer);
+
+		// Round up, so the timer never fires early; a deadline already
+		// passed fires on the next tick
+		long tick = (deadline + this.tickLength - 1) / this.tickLength;
+		timer.deadline = deadline;
+		timer.tick = Math.max(tick, this.currentTick + 1);
+		timer.linkBefore(this.slots[(int)timer.tick & (this.slots.length - 1)]);
+		this.size++;
+	}
+
+	/**
+	 * Stop a timer from firing; does nothing if it is not scheduled.
+	 * @param timer the timer
+	 */
+	public void cancel(Timer timer)
+	{
+		if (!timer.isScheduled())
+		{ return; }
+		timer.unlink();
+		this.size--;
+	}
+
+	/**
+	 * Fire the timers due by a time, in tick order.
+	 * @param now current time (in milliseconds)
+	 * @return number of timers fired
+	 */
+	public int advance(long now)
+	{
+		int fired = 0;
+		long lastTick = now / this.tickLength;
+		while (this.currentTick < lastTick)
+		{
+			this.currentTick++;
+
+			// Take out the slot's due timers before firing any, since a
+			// timer may reschedule others into the same slot
+			Timer slot = this.slots[(int)this.currentTick & (this.slots.length - 1)];
+			Timer next;
+			for (Timer timer = slot.next; timer != slot; timer = next)
+			{
+				next = timer.next;
+				if (timer.tick <= this.currentTick)
+				{
+					timer.unlink();
+					timer.linkBefore(this.due);
+				}
+			}
+
+			while (!this.due.isEmpty())
+			{
+				Timer timer = ((Timer)this.due).next;
+				timer.unlink();
+				this.size--;
+				timer.expired(now);
+				fired++;
+			}
+		}
+		return fired;
+	}
+}
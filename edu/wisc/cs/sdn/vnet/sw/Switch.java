@@ -4,6 +4,9 @@ import net.floodlightcontroller.packet.Ethernet;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.PacketLog;
+import edu.wisc.cs.sdn.vnet.PacketLog.Category;
+import edu.wisc.cs.sdn.vnet.PacketLog.Level;
 
 /**
  * @author Aaron Gember-Jacobson
@@ -29,8 +32,8 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		PacketLog.logPacket(Level.DEBUG, Category.PACKET,
+				"*** -> Received packet: ", etherPacket);
 		
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
@@ -47,7 +50,8 @@ public class Switch extends Device
 				if (iface != inIface)
 				{
 					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
+					PacketLog.log(Level.DEBUG, Category.FORWARD, 
+							"Send packet out interface %s", iface);
 				}
 			}
 		}
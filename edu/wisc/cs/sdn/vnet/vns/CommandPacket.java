@@ -6,6 +6,9 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Bytes in front of the Ethernet frame: length, type and interface */
+	static final int HEADER_SIZE = 4 + 4 + 16;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -14,11 +17,7 @@ public class CommandPacket extends Command
 	
 	protected CommandPacket deserialize(ByteBuffer buf)
 	{
-		super.deserialize(buf);
-				
-		byte[] tmpBytes = new byte[16];
-		buf.get(tmpBytes);
-		this.mInterfaceName = new String(tmpBytes).trim();
+		this.deserializeHeader(buf);
 		
         this.etherPacket = new Ethernet();
 		this.etherPacket.deserialize(buf.array(), buf.position(),
@@ -27,6 +26,40 @@ public class CommandPacket extends Command
 		return this;
 	}
 	
+	/**
+	 * Read the command's header, leaving the buffer positioned at the start
+	 * of the Ethernet frame.
+	 */
+	protected CommandPacket deserializeHeader(ByteBuffer buf)
+	{
+		super.deserialize(buf);
+				
+		byte[] tmpBytes = new byte[16];
+		buf.get(tmpBytes);
+		this.mInterfaceName = new String(tmpBytes).trim();
+		return this;
+	}
+	
+	/**
+	 * Write a packet command's header into the {@link #HEADER_SIZE} bytes in
+	 * front of an Ethernet frame, so the frame can be sent without copying.
+	 * @param buf buffer holding the frame
+	 * @param start position of the header; the frame must follow it
+	 * @param frameLength length of the frame
+	 * @param ifaceName interface to send the frame out of
+	 */
+	static void serializeHeader(byte[] buf, int start, int frameLength,
+			String ifaceName)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(buf, start, HEADER_SIZE);
+		bb.putInt(HEADER_SIZE + frameLength);
+		bb.putInt(Command.VNS_PACKET);
+		byte[] name = ifaceName.getBytes();
+		bb.put(name, 0, Math.min(name.length, 16));
+		for (int i = name.length; i < 16; i++)
+		{ bb.put((byte)0); }
+	}
+	
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
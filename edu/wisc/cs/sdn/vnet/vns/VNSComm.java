@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -7,6 +8,8 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
@@ -16,13 +19,129 @@ import edu.wisc.cs.sdn.vnet.Iface;
 
 public class VNSComm 
 {
+	/** Queued behind the last outgoing command to stop the writer thread */
+	private static final ByteBuffer STOP = ByteBuffer.allocate(0);
+	
 	private Socket socket;
 	private Device device;
 	
+	/** Commands waiting for the writer thread; null if commands are written
+	 *  by the thread sending them */
+	private BlockingQueue<ByteBuffer> outQueue;
+	
+	/** Thread writing queued commands to the server; null if not started */
+	private Thread writer;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.outQueue = null;
+		this.writer = null;
+	}
+	
+	/**
+	 * Write commands to the server from a dedicated thread, so threads
+	 * sending packets only queue them. Commands are written in the order
+	 * they were queued, and are flushed whenever the queue runs dry.
+	 */
+	public void startWriter()
+	{
+		final BlockingQueue<ByteBuffer> queue = 
+				new LinkedBlockingQueue<ByteBuffer>();
+		this.writer = new Thread("vns-writer")
+		{
+			public void run()
+			{
+				OutputStream outStream;
+				try
+				{
+					outStream = new BufferedOutputStream(
+							socket.getOutputStream());
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					return;
+				}
+				
+				while (true)
+				{
+					ByteBuffer buf;
+					try
+					{ buf = queue.take(); }
+					catch (InterruptedException e)
+					{ return; }
+					
+					try
+					{
+						if (buf != STOP)
+						{
+							outStream.write(buf.array(), buf.position(), 
+									buf.remaining());
+						}
+						if (queue.isEmpty() || STOP == buf)
+						{ outStream.flush(); }
+					}
+					catch (IOException e)
+					{ System.err.println("Error writing packet"); }
+					
+					if (STOP == buf)
+					{ return; }
+				}
+			}
+		};
+		this.writer.setDaemon(true);
+		this.outQueue = queue;
+		this.writer.start();
+	}
+	
+	/**
+	 * Write out the commands already queued, then stop the writer thread.
+	 */
+	public void stopWriter()
+	{
+		if (null == this.writer)
+		{ return; }
+		this.outQueue.add(STOP);
+		try
+		{ this.writer.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		this.writer = null;
+		this.outQueue = null;
+	}
+	
+	/**
+	 * Write a command to the server, or queue it for the writer thread if
+	 * one is running.
+	 * @return true if the command was written or queued
+	 */
+	private boolean write(byte[] buf, int offset, int length)
+	{
+		BlockingQueue<ByteBuffer> queue = this.outQueue;
+		if (queue != null)
+		{
+			queue.add(ByteBuffer.wrap(buf, offset, length));
+			return true;
+		}
+		
+		// Threads other than the reader, such as timers, send packets too
+		synchronized (this.socket)
+		{
+		    try
+			{
+				OutputStream outStream = socket.getOutputStream();
+				outStream.write(buf, offset, length);
+	            outStream.flush();
+			}
+			catch(IOException e)
+			{
+				System.err.println("Error writing packet");
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	public boolean connectToServer(short port, String server)
@@ -191,15 +310,29 @@ public class VNSComm
 		{
 		case Command.VNS_PACKET:
 			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
+			cmdPkt.deserializeHeader(buf);
+			Iface inIface = this.device.getInterface(cmdPkt.mInterfaceName);
+			int frameOffset = buf.position();
+			int frameLength = len - frameOffset;
 			
 			// Log packet
             if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
+            {
+            	this.device.getLogFile().dump(buf.array(), frameOffset, 
+            			frameLength); 
+            }
+			
+			// Let the device handle the raw frame if it can, so the frame is
+			// only parsed when it has to be
+			if (this.device.handleFrame(buf.array(), frameOffset, frameLength,
+					inIface))
+			{ break; }
+			
+			buf.position(0);
+			cmdPkt.deserialize(buf);
 			
 			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			this.device.handlePacket(cmdPkt.etherPacket, inIface);
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -241,6 +374,32 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Send a raw Ethernet frame. If there is room in front of the frame, as
+	 * there is in a received frame's buffer, the command header is written
+	 * there and the frame is sent without being copied.
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, 
+			String ifaceName)
+	{
+		byte[] buf = frame;
+		int start = offset - CommandPacket.HEADER_SIZE;
+		if (start < 0)
+		{
+			buf = new byte[CommandPacket.HEADER_SIZE + length];
+			System.arraycopy(frame, offset, buf, CommandPacket.HEADER_SIZE, 
+					length);
+			start = 0;
+		}
+		CommandPacket.serializeHeader(buf, start, length, ifaceName);
+		
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(frame, offset, length); }
+		
+		return this.write(buf, start, CommandPacket.HEADER_SIZE + length);
+	}
+	
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
@@ -260,17 +419,6 @@ public class VNSComm
         if (this.device.getLogFile() != null)
         { this.device.getLogFile().dump(etherPacket); }
 		
-	    try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
-		{
-			System.err.println("Error writing packet");
-			return false;
-		}
-		return true;
+		return this.write(buf, 0, buf.length);
 	}
 }
@@ -17,15 +17,40 @@
 
 package net.floodlightcontroller.packet;
 
+import java.util.Arrays;
 
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
 */
 public abstract class BasePacket implements IPacket {
+    /** Whether deserialize() leaves payloads undecoded until first use */
+    private static boolean lazyParsing = false;
+
     protected IPacket parent;
     protected IPacket payload;
 
+    /** Buffer holding the undecoded payload, or null once it is decoded */
+    private byte[] rawData;
+    private int rawOffset;
+    private int rawLength;
+    private Class<? extends IPacket> rawClass;
+
+    /**
+     * @param lazy true to have deserialize() record where each payload lies
+     *        in the buffer and decode it on the first call to getPayload()
+     */
+    public static void setLazyParsing(boolean lazy) {
+        lazyParsing = lazy;
+    }
+
+    /**
+     * @return whether payloads are decoded on demand
+     */
+    public static boolean isLazyParsing() {
+        return lazyParsing;
+    }
+
     /**
      * @return the parent
      */
@@ -48,6 +73,11 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket getPayload() {
+        if (rawData != null) {
+            payload = decodePayload(rawClass, rawData, rawOffset, rawLength);
+            rawData = null;
+            rawClass = null;
+        }
         return payload;
     }
 
@@ -57,8 +87,63 @@ public abstract class BasePacket implements IPacket {
     @Override
     public IPacket setPayload(IPacket payload) {
         this.payload = payload;
+        this.rawData = null;
+        this.rawClass = null;
         return this;
     }
+
+    /**
+     * Decodes the payload of a packet being deserialized, or, when lazy
+     * parsing is enabled, records where it lies so getPayload() can decode
+     * it later. The buffer must not be modified while the payload is
+     * undecoded.
+     * @param clazz the payload class
+     * @param data the buffer holding the payload
+     * @param offset the offset of the payload in the buffer
+     * @param length the length of the payload
+     */
+    protected void deserializePayload(Class<? extends IPacket> clazz,
+            byte[] data, int offset, int length) {
+        if (lazyParsing) {
+            this.payload = null;
+            this.rawData = data;
+            this.rawOffset = offset;
+            this.rawLength = length;
+            this.rawClass = clazz;
+        } else {
+            this.rawData = null;
+            this.rawClass = null;
+            this.payload = decodePayload(clazz, data, offset, length);
+        }
+    }
+
+    private IPacket decodePayload(Class<? extends IPacket> clazz,
+            byte[] data, int offset, int length) {
+        IPacket packet;
+        try {
+            packet = clazz.newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException("Error parsing payload for "
+                    + this.getClass().getSimpleName() + " packet", e);
+        }
+        packet = packet.deserialize(data, offset, length);
+        packet.setParent(this);
+        return packet;
+    }
+
+    /**
+     * Serializes the payload for inclusion in this packet. An undecoded
+     * payload is copied through unchanged.
+     * @return the payload bytes, or null if there is no payload
+     */
+    protected byte[] serializePayload() {
+        if (rawData != null)
+            return Arrays.copyOfRange(rawData, rawOffset, rawOffset + rawLength);
+        if (payload == null)
+            return null;
+        payload.setParent(this);
+        return payload.serialize();
+    }
     
     @Override
     public void resetChecksum() {
@@ -73,6 +158,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = this.getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +175,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = this.getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
@@ -91,6 +91,14 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param destinationMACAddress the destination MAC to set
+     */
+    public Ethernet setDestinationMACAddress(MACAddress destinationMACAddress) {
+        this.destinationMACAddress = destinationMACAddress;
+        return this;
+    }
+
     /**
      * @return the source MACAddress as a byte array
      */
@@ -121,6 +129,14 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param sourceMACAddress the source MAC to set
+     */
+    public Ethernet setSourceMACAddress(MACAddress sourceMACAddress) {
+        this.sourceMACAddress = sourceMACAddress;
+        return this;
+    }
+
     /**
      * @return the priorityCode
      */
@@ -198,11 +214,7 @@ public class Ethernet extends BasePacket {
     }
 
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
                           ((payloadData == null) ? 0 : payloadData.length);
         if (pad && length < 60) {
@@ -253,19 +265,10 @@ public class Ethernet extends BasePacket {
         }
         this.etherType = etherType;
         
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
-            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
+        if (clazz == null)
+            clazz = Data.class;
+        this.deserializePayload(clazz, data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 
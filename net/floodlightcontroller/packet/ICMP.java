@@ -24,8 +24,12 @@ import java.nio.ByteBuffer;
  * @author shudong.zhou@bigswitch.com
  */
 public class ICMP extends BasePacket {
+    public static final byte TYPE_ECHO_REPLY = 0x0;
+    public static final byte TYPE_DESTINATION_UNREACHABLE = 0x3;
     public static final byte TYPE_ECHO_REQUEST = 0x8;
 
+    public static final byte CODE_HOST_UNREACHABLE = 0x1;
+
     protected byte icmpType;
     protected byte icmpCode;
     protected short checksum;
@@ -83,12 +87,9 @@ public class ICMP extends BasePacket {
      */
     public byte[] serialize() {
         int length = 4;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
+        byte[] payloadData = this.serializePayload();
+        if (payloadData != null)
             length += payloadData.length;
-        }
 
         byte[] data = new byte[length];
         ByteBuffer bb = ByteBuffer.wrap(data);
@@ -164,9 +165,7 @@ public class ICMP extends BasePacket {
         this.icmpCode = bb.get();
         this.checksum = bb.getShort();
         
-        this.payload = new Data();
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.deserializePayload(Data.class, data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
@@ -279,6 +279,117 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    /**
+     * Verifies the header checksum from the header fields alone, without
+     * serializing the packet or its payload.
+     * @return true if the checksum matches the header
+     */
+    public boolean isChecksumValid() {
+        int sum = ((((this.version & 0xf) << 4) | (this.headerLength & 0xf)) << 8)
+                + (this.diffServ & 0xff);
+        sum += this.totalLength & 0xffff;
+        sum += this.identification & 0xffff;
+        sum += (((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff));
+        sum += ((this.ttl & 0xff) << 8) + (this.protocol & 0xff);
+        sum += this.checksum & 0xffff;
+        sum += (this.sourceAddress >>> 16) + (this.sourceAddress & 0xffff);
+        sum += (this.destinationAddress >>> 16)
+                + (this.destinationAddress & 0xffff);
+        if (this.options != null) {
+            for (int i = 0; i + 1 < this.options.length; i += 2) {
+                sum += ((this.options[i] & 0xff) << 8)
+                        + (this.options[i + 1] & 0xff);
+            }
+        }
+        return 0xffff == fold(sum);
+    }
+
+    /**
+     * Decrements the TTL and updates the checksum to match, without
+     * recomputing it over the whole header.
+     * @return this
+     */
+    public IPv4 decrementTtl() {
+        short oldWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.ttl--;
+        short newWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.checksum = updateChecksum(this.checksum, oldWord, newWord);
+        return this;
+    }
+
+    /**
+     * Computes the IPv4 checksum (the one's complement of the one's
+     * complement sum of 16-bit words) of a serialized header.
+     * @param data buffer holding the header
+     * @param offset position of the header
+     * @param length length of the header in bytes, a multiple of 2
+     * @return the checksum; 0 if the header holds a correct checksum
+     */
+    public static short computeChecksum(byte[] data, int offset, int length) {
+        int sum = 0;
+        for (int i = offset; i < offset + length; i += 2) {
+            sum += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        }
+        return (short) (~fold(sum) & 0xffff);
+    }
+
+    /**
+     * Verifies the checksum of a serialized IPv4 header, reading only the
+     * 20 to 60 header bytes and never the payload.
+     * @param data buffer holding the header
+     * @param offset position of the header
+     * @param length number of bytes available from offset
+     * @return true if the header is complete and its checksum is correct
+     */
+    public static boolean isChecksumValid(byte[] data, int offset, int length) {
+        int headerLength = (data[offset] & 0xf) * 4;
+        if (headerLength < 20 || headerLength > length)
+            return false;
+        return 0 == computeChecksum(data, offset, headerLength);
+    }
+
+    /**
+     * Updates a checksum for a change to one 16-bit word of the data it
+     * covers, as in RFC 1624 (eqn. 3): HC' = ~(~HC + ~m + m').
+     * @param checksum the checksum before the change
+     * @param oldWord the word before the change
+     * @param newWord the word after the change
+     * @return the checksum after the change
+     */
+    public static short updateChecksum(short checksum, short oldWord,
+            short newWord) {
+        int sum = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        return (short) (~fold(sum) & 0xffff);
+    }
+
+    /**
+     * Decrements the TTL of a serialized IPv4 header in place and updates
+     * its checksum to match.
+     * @param data buffer holding the header
+     * @param offset position of the header
+     */
+    public static void decrementTtl(byte[] data, int offset) {
+        short oldWord = (short) (((data[offset + 8] & 0xff) << 8)
+                | (data[offset + 9] & 0xff));
+        data[offset + 8]--;
+        short newWord = (short) (((data[offset + 8] & 0xff) << 8)
+                | (data[offset + 9] & 0xff));
+        short checksum = (short) (((data[offset + 10] & 0xff) << 8)
+                | (data[offset + 11] & 0xff));
+        checksum = updateChecksum(checksum, oldWord, newWord);
+        data[offset + 10] = (byte) (checksum >> 8);
+        data[offset + 11] = (byte) checksum;
+    }
+
+    /**
+     * Folds the carries of a one's complement sum back into its low 16 bits.
+     */
+    private static int fold(int sum) {
+        sum = (sum & 0xffff) + (sum >>> 16);
+        return (sum & 0xffff) + (sum >>> 16);
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
@@ -287,11 +398,7 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
 
         int optionsLength = 0;
         if (this.options != null)
@@ -326,9 +433,7 @@ public class IPv4 extends BasePacket {
             for (int i = 0; i < this.headerLength * 2; ++i) {
                 accumulation += 0xffff & bb.getShort();
             }
-            accumulation = ((accumulation >> 16) & 0xffff)
-                    + (accumulation & 0xffff);
-            this.checksum = (short) (~accumulation & 0xffff);
+            this.checksum = (short) (~fold(accumulation) & 0xffff);
             bb.putShort(10, this.checksum);
         }
         return data;
@@ -360,19 +465,10 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
-            Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
+        if (clazz == null)
+            clazz = Data.class;
+        this.deserializePayload(clazz, data, bb.position(), bb.limit()-bb.position());
 
         if (this.totalLength != length)
             this.isTruncated = true;
@@ -106,11 +106,7 @@ public class UDP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = this.serializePayload();
 
         this.length = (short) (8 + ((payloadData == null) ? 0
                 : payloadData.length));
@@ -205,23 +201,12 @@ public class UDP extends BasePacket {
         this.length = bb.getShort();
         this.checksum = bb.getShort();
 
-        if (UDP.decodeMap.containsKey(this.destinationPort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else if (UDP.decodeMap.containsKey(this.sourcePort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else {
-            this.payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        Class<? extends IPacket> clazz = UDP.decodeMap.get(this.destinationPort);
+        if (clazz == null)
+            clazz = UDP.decodeMap.get(this.sourcePort);
+        if (clazz == null)
+            clazz = Data.class;
+        this.deserializePayload(clazz, data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }